@@ -1,21 +1,102 @@
 import java.awt.Graphics;
+import java.awt.event.KeyEvent;
 import java.awt.image.BufferStrategy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
 
+import graphics.Camera;
+import graphics.CameraPath;
+import graphics.Art;
+import graphics.DynamicResolution;
+import graphics.Entity;
+import graphics.FrameCapture;
+import graphics.Palette;
 import graphics.RenderPane3D;
+import graphics.TiledRenderer;
+import graphics.ViewRenderer;
+import network.GameClient;
+import ui.InputHandler;
+import ui.InputRecorder;
+import ui.InputReplay;
 import ui.Window;
+import utils.FrameProfiler;
+import utils.FrameProfiler.Phase;
+import utils.FrameReuse;
 import utils.Level;
+import utils.SaveGame;
 
 public class Application {
 
+	private static final int FOG_COLOUR = 0xff010401;
+	private static final float FOG_STRENGTH = 0.3f;
+	// Enough buffered frames to cover the video encoder briefly falling behind (such as while a screenshot is being encoded)
+	private static final int CAPTURE_BUFFER_COUNT = 8;
+	private static final String QUICK_SAVE_PATH = "quicksave.dsav";
+	// The allocation check's warm-up only ends once the JIT hasn't compiled anything for this many frames, which is longer than it takes a method
+	// called once a frame to be handed to the optimising compiler (but gives up eventually, in case something keeps being compiled)
+	private static final int ALLOCATION_CHECK_QUIET_FRAMES = 6000;
+	private static final int ALLOCATION_CHECK_MAX_WARMUP_FRAMES = 100000;
+
 	private final Window window;
 	private final Thread mainGameThread;
 	private volatile boolean isGameRunning = false;
 
+	private String levelName = "test";
 	private Level currentLevel;
-	private final RenderPane3D renderPane = new RenderPane3D(400, 240);
+	private RenderPane3D renderPane = new RenderPane3D(400, 240);
+	private DynamicResolution dynamicResolution = null;
+	private Palette palette = null;
+	private int viewCount = 1;
+	private boolean usePortalRenderer = false;
+	private ViewRenderer viewRenderer = null;
+	private int tileThreadCount = 0;
+	private float fieldOfView = Camera.DEFAULT_FIELD_OF_VIEW;
+	private int warmupFrameCount = 0;
+	// The frame times of the first second of frames, which is when the JIT compiling the render path causes hitches
+	private long firstSecondStartTime = 0, firstSecondTotalNanoseconds = 0, firstSecondMaxNanoseconds = 0;
+	private int firstSecondFrameCount = 0;
+	private boolean isFirstSecondReported = false;
+	private TiledRenderer tiledRenderer = null;
+	private final byte[] counterLine = new byte[64];
+	private int counterLineLength = 0;
+	private final FrameProfiler profiler = new FrameProfiler();
+	private boolean wasOverlayKeyDown = false;
+	private boolean useFrameReuse = false;
+	private FrameReuse frameReuse = null;
+	private FrameCapture frameCapture = null;
+	private String videoCapturePath = null;
+	private boolean wasScreenshotKeyDown = false, wasVideoKeyDown = false, isScreenshotRequested = false;
+	private boolean wasRendererKeyDown = false;
+	private final SaveGame saveGame = new SaveGame();
+	private boolean wasQuickSaveKeyDown = false, wasQuickLoadKeyDown = false;
+	
+	// When replaying (or running headless), the game reads its input from here rather than from the window
+	private final InputHandler tickInput = new InputHandler();
+	private InputRecorder inputRecorder = null;
+	private InputReplay inputReplay = null;
+	private GameClient gameClient = null;
 	
 	public Application(String title, int width, int height) {
-		window = new Window(title, width, height);
+		this(new Window(title, width, height));
+	}
+	
+	public Application() {
+		// Without a window the application is headless, and can only be driven by an input replay
+		this(null);
+	}
+	
+	private Application(Window window) {
+		this.window = window;
+		profiler.registerMBean();
 
 		// Create the main game thread (but don't invoke it)
 		mainGameThread = new Thread(() -> {
@@ -50,6 +131,270 @@ public class Application {
 	
 	public boolean isGameRunning() { return isGameRunning; }
 	
+	public void setLevelName(String levelName) { this.levelName = levelName; }
+	
+	public void enableDynamicResolution(float minScale, float maxScale, int targetFps) {
+		dynamicResolution = new DynamicResolution(renderPane.width, renderPane.height, minScale, maxScale, targetFps, palette);
+		renderPane = dynamicResolution.getRenderPane();
+	}
+	
+	public void enableIndexedRendering() {
+		// Quantise all of the art to a single palette, and draw the frame as palette indices with the fog looked up as each pixel is drawn
+		palette = new Palette(Art.ALL_SPRITES, FOG_COLOUR, FOG_STRENGTH);
+		renderPane = new RenderPane3D(renderPane.width, renderPane.height, palette);
+	}
+	
+	public void enableSplitScreen(int viewCount) {
+		if((viewCount < 1) || (viewCount > 4))
+			throw new IllegalArgumentException("Split screen supports between 1 and 4 views, not " + viewCount);
+		this.viewCount = viewCount;
+	}
+	
+	public void setRenderResolution(int width, int height) {
+		renderPane = new RenderPane3D(width, height, palette);
+	}
+	
+	public void enableTiledRendering(int threadCount) {
+		if(threadCount < 1)
+			throw new IllegalArgumentException("Tiled rendering needs at least one thread, not " + threadCount);
+		tileThreadCount = threadCount;
+	}
+	
+	public void enableFrameReuse() {
+		// Frames are always reused when there is a window, so this is only needed to reuse them headless (such as in the allocation check)
+		useFrameReuse = true;
+	}
+	
+	public void setFieldOfView(float degrees) {
+		// The screen is flat, so it stretches out to infinity as the field of view approaches a half turn
+		if((degrees < 30) || (degrees > 150))
+			throw new IllegalArgumentException("The field of view must be between 30 and 150 degrees, not " + degrees);
+		fieldOfView = (float) Math.toRadians(degrees);
+	}
+	
+	public void enableWarmup(int frameCount) {
+		if(frameCount < 1)
+			throw new IllegalArgumentException("Warming up needs at least one frame, not " + frameCount);
+		warmupFrameCount = frameCount;
+	}
+	
+	public void enablePortalRenderer() {
+		usePortalRenderer = true;
+	}
+	
+	public void startVideoCapture(String path) {
+		videoCapturePath = path;
+	}
+	
+	public void startRecording(String path) throws IOException {
+		inputRecorder = new InputRecorder(path, levelName);
+		window.inputHandler.recorder = inputRecorder;
+		
+		// The window closes the application without stopping the game thread, so make sure the recording is written out before exiting
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> inputRecorder.close(), "Input Recorder Shutdown"));
+	}
+	
+	public void connectToServer(String host, int port) throws IOException {
+		gameClient = new GameClient(host, port);
+	}
+	
+	public void startReplay(String path) throws IOException {
+		inputReplay = new InputReplay(path);
+		levelName = inputReplay.levelName;
+	}
+	
+	public void runHeadlessReplay(String reportPath) {
+		if(inputReplay == null)
+			return;
+		onStartup();
+		
+		// Update and render every recorded tick as fast as possible, recording how long each took and a hash of the frame that was produced
+		try(PrintWriter report = new PrintWriter(reportPath)) {
+			report.println("tick,update_ns,render_ns,frame_hash");
+			
+			final long replayStartTime = System.nanoTime();
+			while(inputReplay.hasNextTick()) {
+				final long updateStartTime = System.nanoTime();
+				currentLevel.update(tickInput, inputReplay.nextTick(tickInput));
+				final long renderStartTime = System.nanoTime();
+				profiler.beginFrame();
+				renderFrame();
+				profiler.endFrame();
+				final long renderEndTime = System.nanoTime();
+				
+				report.println(inputReplay.getTickCount() + "," + (renderStartTime - updateStartTime) + "," + (renderEndTime - renderStartTime) + "," + Long.toHexString(hashFrame()));
+			}
+			
+			System.out.println("Replayed " + inputReplay.getTickCount() + " ticks in " + ((System.nanoTime() - replayStartTime) / 1000000) + "ms, report written to " + reportPath);
+		} catch (FileNotFoundException e) {
+			System.err.println("Failed to write replay report - " + e.getMessage());
+		}
+		
+		onShutdown();
+	}
+	
+	public boolean runBenchmark(int frameCount, CameraPath cameraPath, String reportPath, String goldenPath) throws IOException {
+		onStartup();
+		
+		// Without a scripted path, spin the camera on the spot at the player's spawn point
+		final Camera camera = currentLevel.player.camera;
+		if(cameraPath == null) {
+			cameraPath = new CameraPath();
+			cameraPath.addWaypoint(camera.x, camera.y, camera.z, camera.angle);
+			cameraPath.addWaypoint(camera.x, camera.y, camera.z, camera.angle + (float) (2 * Math.PI));
+		}
+		
+		// If golden hashes already exist then compare each frame against them, otherwise record the hashes from this run
+		final boolean isComparingGolden = (goldenPath != null) && new File(goldenPath).exists();
+		final ArrayList<String> goldenHashes = new ArrayList<String>();
+		if(isComparingGolden) {
+			try(BufferedReader reader = new BufferedReader(new FileReader(goldenPath))) {
+				String line;
+				while((line = reader.readLine()) != null) {
+					goldenHashes.add(line.trim());
+				}
+			}
+		}
+		final ArrayList<String> frameHashes = new ArrayList<String>();
+		int mismatchedFrames = 0;
+		
+		// Render each frame along the path through the same render passes as the game, and record the time taken for each phase
+		try(PrintWriter report = new PrintWriter(reportPath)) {
+			report.println("frame,x,y,z,angle,clear_ns,walls_ns,floor_and_ceiling_ns,entities_ns,fog_ns,frame_ns,frame_hash");
+			
+			final long benchmarkStartTime = System.nanoTime();
+			for(int frame = 0; frame < frameCount; frame++) {
+				cameraPath.applyTo(camera, (frameCount <= 1) ? 0 : (frame / (float) (frameCount - 1)));
+				
+				profiler.beginFrame();
+				renderFrame();
+				if(frameCapture != null) frameCapture.captureVideoFrame(renderPane);
+				profiler.endPhase(Phase.PRESENT);
+				profiler.endFrame();
+				recordFirstSecondFrame(profiler.getLastFrameNanoseconds(Phase.FRAME));
+				
+				final String frameHash = Long.toHexString(hashFrame());
+				frameHashes.add(frameHash);
+				if(isComparingGolden && ((frame >= goldenHashes.size()) || !goldenHashes.get(frame).equals(frameHash))) {
+					System.err.println("Frame " + frame + " does not match the golden image hash");
+					mismatchedFrames++;
+				}
+				
+				report.println(frame + "," + camera.x + "," + camera.y + "," + camera.z + "," + camera.angle + "," 
+						+ profiler.getLastFrameNanoseconds(Phase.CLEAR) + "," + profiler.getLastFrameNanoseconds(Phase.WALLS) + "," 
+						+ profiler.getLastFrameNanoseconds(Phase.FLOOR_AND_CEILING) + "," + profiler.getLastFrameNanoseconds(Phase.ENTITIES) + "," 
+						+ profiler.getLastFrameNanoseconds(Phase.FOG) + "," + profiler.getLastFrameNanoseconds(Phase.FRAME) + "," + frameHash);
+			}
+			
+			profiler.publish();
+			// Short benchmarks can finish inside the first second, in which case the frames so far are reported
+			reportFirstSecond();
+			System.out.println("Rendered " + frameCount + " frames in " + ((System.nanoTime() - benchmarkStartTime) / 1000000) + "ms, report written to " + reportPath);
+			System.out.print(profiler.getReport());
+		}
+		
+		if((goldenPath != null) && !isComparingGolden) {
+			try(PrintWriter golden = new PrintWriter(goldenPath)) {
+				for(String frameHash : frameHashes) {
+					golden.println(frameHash);
+				}
+			}
+			System.out.println("Golden image hashes written to " + goldenPath);
+		}
+		
+		onShutdown();
+		return (mismatchedFrames == 0);
+	}
+	
+	public boolean runAllocationCheck(int warmupFrames, int measuredFrames) {
+		onStartup();
+		
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(!(threadBean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM can't measure allocated memory per thread");
+			return false;
+		}
+		final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		final long[] threadIds = getRenderThreadIds();
+		
+		// Run enough frames for the JIT to compile the hot path first, as interpreted code allocates things that compiled code doesn't. Asking for
+		// a method to be compiled by the optimising compiler allocates too (the JVM creates a String for every string constant in the method's
+		// class on the thread that asked), and methods called once a frame only get there after thousands of frames. So the warm-up carries on
+		// until the compiler has gone a long stretch of frames with nothing to compile.
+		final CompilationMXBean compilationBean = ManagementFactory.getCompilationMXBean();
+		final boolean canWatchCompiler = (compilationBean != null) && compilationBean.isCompilationTimeMonitoringSupported();
+		long compilationTime = canWatchCompiler ? compilationBean.getTotalCompilationTime() : 0;
+		int warmedUpFrames = 0;
+		for(int quietFrames = 0; (warmedUpFrames < warmupFrames) || (canWatchCompiler && (quietFrames < ALLOCATION_CHECK_QUIET_FRAMES)
+				&& (warmedUpFrames < ALLOCATION_CHECK_MAX_WARMUP_FRAMES)); warmedUpFrames++) {
+			applyAllocationCheckInput(warmedUpFrames);
+			runHeadlessFrame();
+			if(!canWatchCompiler) continue;
+			final long latestCompilationTime = compilationBean.getTotalCompilationTime();
+			quietFrames = (latestCompilationTime == compilationTime) ? (quietFrames + 1) : 0;
+			compilationTime = latestCompilationTime;
+		}
+		
+		// Measure the cost of reading the allocation counter itself, so that it can be ignored
+		final long calibrationStart = getAllocatedBytes(allocationBean, threadIds);
+		final long calibrationBytes = getAllocatedBytes(allocationBean, threadIds) - calibrationStart;
+		
+		final long measurementStart = getAllocatedBytes(allocationBean, threadIds);
+		for(int frame = 0; frame < measuredFrames; frame++) {
+			applyAllocationCheckInput(warmedUpFrames + frame);
+			runHeadlessFrame();
+		}
+		final long allocatedBytes = getAllocatedBytes(allocationBean, threadIds) - measurementStart - calibrationBytes;
+		
+		System.out.println("Allocated " + allocatedBytes + " bytes over " + measuredFrames + " frames after " + warmedUpFrames + " warm-up frames");
+		onShutdown();
+		return (allocatedBytes <= 0);
+	}
+	
+	private void applyAllocationCheckInput(int frame) {
+		// Hold down forward and turn right for a second, then let go for a second, so that the player and camera move through the level while the
+		// mobs chase them, and frames with a still camera (where only the mobs need drawing again) are checked too
+		if((frame % 60) != 0)
+			return;
+		final boolean isMoving = ((frame / 60) % 2) == 0;
+		tickInput.applyKeyEvent(KeyEvent.VK_W, isMoving);
+		tickInput.applyKeyEvent(KeyEvent.VK_RIGHT, isMoving);
+	}
+	
+	private long[] getRenderThreadIds() {
+		// The game thread, along with any threads drawing views or tiles for it
+		final Thread[] workerThreads = (viewRenderer != null) ? viewRenderer.workerThreads : (tiledRenderer != null) ? tiledRenderer.workerThreads : new Thread[0];
+		final long[] threadIds = new long[1 + workerThreads.length];
+		threadIds[0] = Thread.currentThread().getId();
+		for(int i = 0; i < workerThreads.length; i++) {
+			threadIds[1 + i] = workerThreads[i].getId();
+		}
+		return threadIds;
+	}
+	
+	private static long getAllocatedBytes(com.sun.management.ThreadMXBean allocationBean, long[] threadIds) {
+		long allocatedBytes = 0;
+		for(long threadId : threadIds) {
+			allocatedBytes += allocationBean.getThreadAllocatedBytes(threadId);
+		}
+		return allocatedBytes;
+	}
+	
+	private void runHeadlessFrame() {
+		final long updateStartTime = System.nanoTime();
+		currentLevel.update(tickInput, 1.0f / 60);
+		profiler.record(Phase.UPDATE, System.nanoTime() - updateStartTime);
+		
+		profiler.beginFrame();
+		FrameReuse.Change frameChange = FrameReuse.Change.ALL;
+		if(viewRenderer != null) renderViews();
+		else if(frameReuse != null) frameChange = renderChangedFrame();
+		else renderFrame();
+		if(frameCapture != null) captureFrame();
+		profiler.endFrame();
+		if((dynamicResolution != null) && (viewRenderer == null) && (frameChange == FrameReuse.Change.ALL) && dynamicResolution.recordFrame(profiler.getLastFrameNanoseconds(Phase.FRAME))) changeRenderResolution();
+	}
+	
 	private void gameLoop() {
 		// Before starting the game loop, prepare anything necessary for the main application thread
 		onStartup();
@@ -79,21 +424,29 @@ public class Application {
 			if(nanosecondsSinceLastUpdate >= maxNanosecondsBetweenUpdates) {
 				double delta = (nanosecondsSinceLastUpdate / 1000000000.0);
 				nanosecondsSinceLastUpdate = 0;
+				final long updateStartTime = System.nanoTime();
 				updateGame(delta);
+				profiler.record(Phase.UPDATE, System.nanoTime() - updateStartTime);
 				currentUps++;
 			}
 			
 			// Render the latest frame
 			if(allowUnlimitedFPS || (nanosecondsSinceLastRender >= maxNanosecondsBetweenRenders)) {
 				nanosecondsSinceLastRender = 0;
-				renderGame();
+				final boolean isFrameReused = renderGame();
+				recordFirstSecondFrame(profiler.getLastFrameNanoseconds(Phase.FRAME));
 				currentFps++;
+				
+				// Nothing on screen can change until the next update, so rather than showing the same frame over and over, wait for it
+				if(isFrameReused && (nanosecondsSinceLastUpdate < maxNanosecondsBetweenUpdates))
+					LockSupport.parkNanos(maxNanosecondsBetweenUpdates - nanosecondsSinceLastUpdate);
 			}
 			
 			// Each second reset the UPS and FPS counters
 			long currentMillis = System.currentTimeMillis();
 			if((currentMillis - lastTickTime) >= 1000) {
-				System.out.println(currentUps + "ups, " + currentFps + "fps!");
+				printCounters(currentUps, currentFps);
+				profiler.publish();
 				currentFps = currentUps = 0;
 				lastTickTime = currentMillis;
 			}
@@ -104,36 +457,420 @@ public class Application {
 	}
 	
 	private void onStartup() {
-		// Load the test level
-		currentLevel = new Level("test");
+		// Load the requested level (the test level unless a replay says otherwise)
+		currentLevel = new Level(levelName);
+		currentLevel.usePortalRenderer = usePortalRenderer;
+		currentLevel.player.camera.fieldOfView = fieldOfView;
+		
+		// With more than one view, each view gets its own camera and a section of the window, and every view is drawn at the same time
+		if(viewCount > 1) {
+			final int columns = 2;
+			final int rows = (viewCount > 2) ? 2 : 1;
+			final RenderPane3D[] viewPanes = new RenderPane3D[viewCount];
+			final Camera[] viewCameras = new Camera[viewCount];
+			for(int i = 0; i < viewCount; i++) {
+				viewPanes[i] = new RenderPane3D(renderPane.width / columns, renderPane.height / rows, palette);
+				viewCameras[i] = new Camera(currentLevel.player.camera.minRenderDistance, currentLevel.player.camera.maxRenderDistance);
+				viewCameras[i].fieldOfView = fieldOfView;
+			}
+			viewRenderer = new ViewRenderer(viewPanes, viewCameras, FOG_COLOUR, FOG_STRENGTH);
+		}
+		
+		// Split screen views are already drawn on a thread each, so tiles are only used for a single view
+		if((tileThreadCount > 0) && (viewRenderer == null)) {
+			final RenderPane3D largestPane = getLargestRenderPane();
+			tiledRenderer = new TiledRenderer(tileThreadCount, largestPane.width, largestPane.height, FOG_COLOUR, FOG_STRENGTH);
+		}
+		
+		// With a window, frames are only drawn again as far as they have changed, which needs somewhere to save the world layer of each render pane
+		if(((window != null) || useFrameReuse) && (viewRenderer == null)) {
+			frameReuse = new FrameReuse();
+			if(dynamicResolution != null) {
+				for(RenderPane3D dynamicPane : dynamicResolution.renderPanes) {
+					dynamicPane.enableWorldLayerSaving();
+				}
+			} else {
+				renderPane.enableWorldLayerSaving();
+			}
+		}
+		
+		// Screenshots and video can be captured whenever there is a window, so set aside the capture buffers up-front (big enough for the highest
+		// resolution the dynamic resolution can switch to)
+		if((window != null) || (videoCapturePath != null)) {
+			final RenderPane3D capturePane = (viewRenderer != null) ? getCapturePane() : getLargestRenderPane();
+			frameCapture = new FrameCapture(CAPTURE_BUFFER_COUNT, capturePane.width, capturePane.height, (capturePane.indexedPixels != null));
+			if(videoCapturePath != null) frameCapture.startVideo(videoCapturePath);
+		}
+		
+		// Now that everything that draws frames exists, draw the warm-up frames before the first frame is shown
+		if(warmupFrameCount > 0) warmUp();
 	}
 	
-	private void onShutdown() {
+	private void warmUp() {
+		final long warmupStartTime = System.nanoTime();
+		final Camera camera = currentLevel.player.camera;
+		final float startX = camera.x, startY = camera.y, startZ = camera.z, startAngle = camera.angle;
+		final RenderPane3D startPane = renderPane;
+		// With dynamic resolution, every pane it could switch to is drawn to, so that none of them is touched for the first time mid-game
+		final RenderPane3D[] warmupPanes = (dynamicResolution != null) ? dynamicResolution.renderPanes : new RenderPane3D[] { renderPane };
+		
+		// Draw frames that are never shown through the same render path as the game, which gets the JIT to compile it and writes to every buffer
+		// (including the saved world layers and the window's back buffer) before the first real frame. The poses alternate between the spawn
+		// point and each entity, looking in a different direction each time, so the frames see a typical mix of walls, floor and mobs.
+		// However few frames were asked for, every pane is drawn at least once.
+		final int frameCount = Math.max(warmupFrameCount, warmupPanes.length);
+		long firstFrameNanoseconds = 0, lastFrameNanoseconds = 0;
+		for(int frame = 0; frame < frameCount; frame++) {
+			camera.x = startX;
+			camera.z = startZ;
+			if(((frame % 2) == 1) && !currentLevel.entities.isEmpty()) {
+				// Entities placed in the entity map can start off inside a wall or outside the level, which the camera can never be, so those are skipped
+				final Entity entity = currentLevel.entities.get((frame / 2) % currentLevel.entities.size());
+				final int entityTileX = (int) Math.floor(entity.x / currentLevel.tileSize);
+				final int entityTileZ = (int) Math.floor(entity.z / currentLevel.tileSize);
+				if((entityTileX >= 0) && (entityTileZ >= 0) && (entityTileX < currentLevel.tileMap.width) && (entityTileZ < currentLevel.tileMap.height)
+						&& (currentLevel.getLevelWall(entityTileX, entityTileZ) == null)) {
+					camera.x = entity.x;
+					camera.z = entity.z;
+				}
+			}
+			// Step round by the golden angle, so the directions never repeat and are spread evenly however many frames there are
+			camera.angle = startAngle + (frame * 2.39996f);
+			
+			final long frameStartTime = System.nanoTime();
+			if(viewRenderer != null) {
+				renderViews();
+				if(window != null) presentViews(window.getCachedDrawGraphics());
+			} else {
+				renderPane = warmupPanes[frame % warmupPanes.length];
+				renderFrame();
+				if(window != null) window.getCachedDrawGraphics().drawImage(renderPane.getBufferedImage(), 0, 0, window.getWidth(), window.getHeight(), null);
+			}
+			lastFrameNanoseconds = System.nanoTime() - frameStartTime;
+			if(frame == 0) firstFrameNanoseconds = lastFrameNanoseconds;
+		}
+		
+		// Put everything back as it was, so the game carries on exactly as it would have without warming up
+		camera.x = startX;
+		camera.y = startY;
+		camera.z = startZ;
+		camera.angle = startAngle;
+		renderPane = startPane;
+		if(frameReuse != null) frameReuse.invalidate();
+		if(frameCapture != null) frameCapture.touchBuffers();
 		
+		System.out.println("Warmed up with " + frameCount + " frames in " + ((System.nanoTime() - warmupStartTime) / 1000000) + "ms (the first frame took "
+				+ (firstFrameNanoseconds / 1000) + "us and the last took " + (lastFrameNanoseconds / 1000) + "us)");
+	}
+	
+	private void recordFirstSecondFrame(long frameNanoseconds) {
+		if(isFirstSecondReported)
+			return;
+		if(firstSecondFrameCount == 0) firstSecondStartTime = System.nanoTime() - frameNanoseconds;
+		firstSecondFrameCount++;
+		firstSecondTotalNanoseconds += frameNanoseconds;
+		firstSecondMaxNanoseconds = Math.max(firstSecondMaxNanoseconds, frameNanoseconds);
+		if((System.nanoTime() - firstSecondStartTime) >= 1000000000L) reportFirstSecond();
+	}
+	
+	private void reportFirstSecond() {
+		// Run with and without --warmup to compare how smooth the first second is
+		if(isFirstSecondReported || (firstSecondFrameCount == 0))
+			return;
+		isFirstSecondReported = true;
+		System.out.println("First second " + ((warmupFrameCount > 0) ? "after warming up" : "without warming up") + ": " + firstSecondFrameCount + " frames, averaging "
+				+ (firstSecondTotalNanoseconds / firstSecondFrameCount / 1000) + "us with the slowest taking " + (firstSecondMaxNanoseconds / 1000) + "us");
+	}
+	
+	private void onShutdown() {
+		if(inputRecorder != null) inputRecorder.close();
+		if(inputReplay != null) inputReplay.close();
+		if(viewRenderer != null) viewRenderer.close();
+		if(tiledRenderer != null) tiledRenderer.close();
+		if(gameClient != null) gameClient.close();
+		if(frameCapture != null) frameCapture.close();
+		if(window != null) window.disposeCachedDrawGraphics();
 	}
 	
 	private void updateGame(double delta) {
-		// Update the level and all entities within it
-		currentLevel.update(window.inputHandler, (float) delta);
+		// Take every input event that has arrived since the last tick, so the whole tick sees a single consistent input state
+		window.inputHandler.poll(profiler);
+		
+		// Toggle the frame profiler overlay when the F3 key is first pressed
+		final boolean isOverlayKeyDown = window.inputHandler.isKeyDown(KeyEvent.VK_F3);
+		if(isOverlayKeyDown && !wasOverlayKeyDown) profiler.setOverlayEnabled(!profiler.isOverlayEnabled());
+		wasOverlayKeyDown = isOverlayKeyDown;
+		
+		// Take a screenshot of the next frame with F12, and start or stop recording video with F9
+		final boolean isScreenshotKeyDown = window.inputHandler.isKeyDown(KeyEvent.VK_F12);
+		if(isScreenshotKeyDown && !wasScreenshotKeyDown) isScreenshotRequested = true;
+		wasScreenshotKeyDown = isScreenshotKeyDown;
+		final boolean isVideoKeyDown = window.inputHandler.isKeyDown(KeyEvent.VK_F9);
+		if(isVideoKeyDown && !wasVideoKeyDown) toggleVideoCapture();
+		wasVideoKeyDown = isVideoKeyDown;
+		
+		// Switch between drawing walls with the ray caster and the portal renderer with F6, so the two can be compared in place
+		final boolean isRendererKeyDown = window.inputHandler.isKeyDown(KeyEvent.VK_F6);
+		if(isRendererKeyDown && !wasRendererKeyDown) {
+			usePortalRenderer = !usePortalRenderer;
+			currentLevel.usePortalRenderer = usePortalRenderer;
+			System.out.println("Drawing walls with the " + (usePortalRenderer ? "portal renderer" : "ray caster"));
+		}
+		wasRendererKeyDown = isRendererKeyDown;
+		
+		// Quick-save with F5 and quick-load with F8, but only when this game owns the level (loading would break a replay, a recording or a
+		// server's view of the level)
+		final boolean isQuickSaveKeyDown = window.inputHandler.isKeyDown(KeyEvent.VK_F5);
+		final boolean isQuickLoadKeyDown = window.inputHandler.isKeyDown(KeyEvent.VK_F8);
+		final boolean canSaveGame = (gameClient == null) && (inputReplay == null);
+		if(canSaveGame && isQuickSaveKeyDown && !wasQuickSaveKeyDown) quickSave();
+		if(canSaveGame && (inputRecorder == null) && isQuickLoadKeyDown && !wasQuickLoadKeyDown) quickLoad();
+		wasQuickSaveKeyDown = isQuickSaveKeyDown;
+		wasQuickLoadKeyDown = isQuickLoadKeyDown;
+		
+		// When connected to a server, the server updates the level, so just send it our input and show the latest snapshot it has sent back
+		if(gameClient != null) {
+			try {
+				gameClient.sendInput(window.inputHandler);
+				if(gameClient.receive()) gameClient.applyTo(currentLevel);
+			} catch (IOException e) {
+				System.err.println("Failed to communicate with the server - " + e.getMessage());
+			}
+			return;
+		}
+		
+		// Update the level and all entities within it, taking the input (and for replays, the tick delta) from a recording if there is one
+		if(inputReplay != null) {
+			if(!inputReplay.hasNextTick()) {
+				System.out.println("Replay finished after " + inputReplay.getTickCount() + " ticks");
+				isGameRunning = false;
+				return;
+			}
+			currentLevel.update(tickInput, inputReplay.nextTick(tickInput));
+		} else {
+			if(inputRecorder != null) inputRecorder.recordTick((float) delta);
+			currentLevel.update(window.inputHandler, (float) delta);
+		}
 	}
 	
-	private void renderGame() {
-		// Get the Graphics instance for the JFrame to draw to the hidden buffer
+	private boolean renderGame() {
+		profiler.beginFrame();
+		FrameReuse.Change frameChange = FrameReuse.Change.ALL;
+		if(viewRenderer != null) renderViews();
+		else frameChange = renderChangedFrame();
+		
+		// Get the Graphics instance for the JFrame to draw to the hidden buffer (reusing it between frames), and display the render pane on it
 		final BufferStrategy bufferStrategy = window.getBufferStrategy();
-		final Graphics graphics = window.getDrawGraphics();
+		final Graphics graphics = window.getCachedDrawGraphics();
+		if(viewRenderer != null) presentViews(graphics);
+		else graphics.drawImage(renderPane.getBufferedImage(), 0, 0, window.getWidth(), window.getHeight(), null);
+		captureFrame();
+		if(profiler.isOverlayEnabled()) profiler.drawOverlay(graphics);
+		
+		// Show the hidden buffer with the new game frame on it
+		bufferStrategy.show();
+		profiler.endPhase(Phase.PRESENT);
+		profiler.endFrame();
 		
-		// Clear, draw to, and display the render pane on the canvas draw graphics
+		// Let the dynamic resolution pick the render pane for the next frame, based on how long this one took. Reused frames say nothing about how
+		// long a real frame takes, so they are left out.
+		if((dynamicResolution != null) && (viewRenderer == null) && (frameChange == FrameReuse.Change.ALL) && dynamicResolution.recordFrame(profiler.getLastFrameNanoseconds(Phase.FRAME)))
+			changeRenderResolution();
+		return (frameChange == FrameReuse.Change.NONE);
+	}
+	
+	private void changeRenderResolution() {
+		renderPane = dynamicResolution.getRenderPane();
+		
+		// Write "Render resolution changed to <width>x<height>" into the reused byte buffer, as the resolution can change at any point in the game
+		counterLineLength = 0;
+		appendCounterText("Render resolution changed to ");
+		appendCounter(renderPane.width);
+		appendCounterText("x");
+		appendCounter(renderPane.height);
+		appendCounterText("\n");
+		System.out.write(counterLine, 0, counterLineLength);
+		System.out.flush();
+	}
+	
+	private FrameReuse.Change renderChangedFrame() {
+		// Only draw as much of the frame as has actually changed since the last one
+		final Camera camera = currentLevel.player.camera;
+		final FrameReuse.Change frameChange = frameReuse.checkForChanges(currentLevel, camera, renderPane);
+		if(frameChange == FrameReuse.Change.ALL) {
+			renderFrame();
+		} else if(frameChange == FrameReuse.Change.SPRITES) {
+			// Put the walls, floor and ceiling back under the entities that changed, then draw the entities and fog over just that area
+			renderPane.setClip(frameReuse.dirtyLeft, frameReuse.dirtyTop, frameReuse.dirtyRight, frameReuse.dirtyBottom);
+			renderPane.restoreWorldLayer();
+			profiler.endPhase(Phase.CLEAR);
+			drawEntitiesAndFog(camera, frameReuse.dirtyLeft, frameReuse.dirtyTop, frameReuse.dirtyRight, frameReuse.dirtyBottom);
+			renderPane.resetClip();
+		}
+		
+		frameReuse.recordFrame(currentLevel, camera, renderPane);
+		return frameChange;
+	}
+	
+	private void renderFrame() {
+		// Clear and draw to the render pane (timing each phase of the frame)
 		if(currentLevel != null) {
 			renderPane.clear(currentLevel.player.camera.maxRenderDistance);
-			currentLevel.drawLevel(renderPane);
-			renderPane.applyFog(currentLevel.player.camera.maxRenderDistance, 0xff010401, 0.3f);
+			profiler.endPhase(Phase.CLEAR);
+			currentLevel.drawWalls(renderPane, currentLevel.player.camera);
+			profiler.endPhase(Phase.WALLS);
+			currentLevel.drawFloorAndCeiling(renderPane, currentLevel.player.camera);
+			profiler.endPhase(Phase.FLOOR_AND_CEILING);
+			// Keep the frame before entities are drawn, so that later frames where only entities change can start from it
+			if((frameReuse != null) && frameReuse.shouldSaveWorldLayer) renderPane.saveWorldLayer();
+			drawEntitiesAndFog(currentLevel.player.camera, 0, 0, renderPane.width, renderPane.height);
 		}
+	}
+	
+	private void drawEntitiesAndFog(Camera camera, int left, int top, int right, int bottom) {
+		if(tiledRenderer != null) {
+			// The tiled renderer draws the entities and fog together one tile at a time, so all of its time is counted as drawing entities
+			tiledRenderer.render(currentLevel, camera, renderPane, left, top, right, bottom);
+			profiler.endPhase(Phase.ENTITIES);
+			profiler.endPhase(Phase.FOG);
+			return;
+		}
+		
+		currentLevel.drawEntities(renderPane, camera);
+		profiler.endPhase(Phase.ENTITIES);
 		// Apply fog to each pixel in the render pane based on the Z buffer distance to that pixel.
-		graphics.drawImage(renderPane.getBufferedImage(), 0, 0, window.getWidth(), window.getHeight(), null);
+		renderPane.applyFog(camera.maxRenderDistance, FOG_COLOUR, FOG_STRENGTH);
+		profiler.endPhase(Phase.FOG);
+	}
+	
+	private RenderPane3D getLargestRenderPane() { return (dynamicResolution != null) ? dynamicResolution.renderPanes[dynamicResolution.renderPanes.length - 1] : renderPane; }
+	
+	private RenderPane3D getCapturePane() { return (viewRenderer != null) ? viewRenderer.renderPanes[0] : renderPane; }
+	
+	private void captureFrame() {
+		// Only the copy into the capture buffers happens here, and all of the encoding happens in the background
+		if(isScreenshotRequested) {
+			frameCapture.takeScreenshot(getCapturePane());
+			isScreenshotRequested = false;
+		}
+		frameCapture.captureVideoFrame(getCapturePane());
+	}
+	
+	private void toggleVideoCapture() {
+		if(frameCapture.isRecordingVideo()) {
+			frameCapture.stopVideo();
+			return;
+		}
 		
-		// Show the hidden buffer with the new game frame on it
-		graphics.dispose();
-		bufferStrategy.show();
+		frameCapture.startVideo("capture_" + System.currentTimeMillis() + ".dvid");
+	}
+	
+	private void quickSave() {
+		final long saveStartTime = System.nanoTime();
+		try {
+			saveGame.capture(currentLevel);
+			saveGame.write(QUICK_SAVE_PATH);
+			System.out.println("Saved " + saveGame.entityCount + " entities in " + ((System.nanoTime() - saveStartTime) / 1000) + "us");
+		} catch (IOException e) {
+			System.err.println("Failed to save the game - " + e.getMessage());
+		}
+	}
+	
+	private void quickLoad() {
+		final long loadStartTime = System.nanoTime();
+		try {
+			saveGame.read(QUICK_SAVE_PATH);
+		} catch (IOException e) {
+			System.err.println("Failed to load the game - " + e.getMessage());
+			return;
+		}
+		
+		// The level's maps only need loading again if the save was made on a different level
+		if(!currentLevel.name.equals(saveGame.levelName)) {
+			if(!Level.exists(saveGame.levelName)) {
+				System.err.println("Failed to load the game - the save is for level '" + saveGame.levelName + "', which doesn't exist");
+				return;
+			}
+			levelName = saveGame.levelName;
+			currentLevel = new Level(levelName);
+			currentLevel.usePortalRenderer = usePortalRenderer;
+			currentLevel.player.camera.fieldOfView = fieldOfView;
+		}
+		saveGame.applyTo(currentLevel);
+		if(frameReuse != null) frameReuse.invalidate();
+		System.out.println("Loaded " + saveGame.entityCount + " entities in " + ((System.nanoTime() - loadStartTime) / 1000) + "us");
+	}
+	
+	private void renderViews() {
+		// The first view follows the player, and the others look out from the player in evenly spaced directions (like spectator feeds)
+		final Camera playerCamera = currentLevel.player.camera;
+		for(int i = 0; i < viewRenderer.cameras.length; i++) {
+			final Camera viewCamera = viewRenderer.cameras[i];
+			viewCamera.x = playerCamera.x;
+			viewCamera.y = playerCamera.y;
+			viewCamera.z = playerCamera.z;
+			viewCamera.angle = playerCamera.angle + (float) ((2 * Math.PI * i) / viewRenderer.cameras.length);
+		}
+		
+		// The views are drawn together, so their time is only recorded against the whole frame rather than each render phase
+		viewRenderer.render(currentLevel);
+	}
+	
+	private void presentViews(Graphics graphics) {
+		// Lay the views out in a grid of two columns, with each scaled up to fill its cell of the window
+		final int rows = (viewRenderer.renderPanes.length > 2) ? 2 : 1;
+		final int cellWidth = window.getWidth() / 2;
+		final int cellHeight = window.getHeight() / rows;
+		for(int i = 0; i < viewRenderer.renderPanes.length; i++) {
+			final int cellX = (i % 2) * cellWidth;
+			final int cellY = (i / 2) * cellHeight;
+			graphics.drawImage(viewRenderer.renderPanes[i].getBufferedImage(), cellX, cellY, cellWidth, cellHeight, null);
+		}
+	}
+	
+	private void printCounters(int ups, int fps) {
+		// Write "<ups>ups, <fps>fps!" straight into a reused byte buffer, as building a string every second would allocate
+		counterLineLength = 0;
+		appendCounter(ups);
+		appendCounterText("ups, ");
+		appendCounter(fps);
+		appendCounterText("fps!\n");
+		System.out.write(counterLine, 0, counterLineLength);
+		System.out.flush();
+	}
+	
+	private void appendCounter(int value) {
+		// Write the digits backwards, then reverse them into place
+		final int start = counterLineLength;
+		do {
+			counterLine[counterLineLength++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while(value > 0);
+		for(int left = start, right = counterLineLength - 1; left < right; left++, right--) {
+			final byte digit = counterLine[left];
+			counterLine[left] = counterLine[right];
+			counterLine[right] = digit;
+		}
+	}
+	
+	private void appendCounterText(String text) {
+		for(int i = 0; i < text.length(); i++) {
+			counterLine[counterLineLength++] = (byte) text.charAt(i);
+		}
+	}
+	
+	private long hashFrame() {
+		long hash = 1125899906842597L;
+		if(renderPane.indexedPixels != null) {
+			for(int i = 0; i < renderPane.indexedPixels.length; i++) {
+				hash = (31 * hash) + renderPane.indexedPixels[i];
+			}
+			return hash;
+		}
+		for(int i = 0; i < renderPane.pixels.length; i++) {
+			hash = (31 * hash) + renderPane.pixels[i];
+		}
+		return hash;
 	}
 	
 }
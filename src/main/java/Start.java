@@ -1,9 +1,233 @@
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.util.Arrays;
+
+import graphics.CameraPath;
+import network.GameClient;
+import network.GameServer;
+import network.Snapshot;
+import ui.InputHandler;
+import utils.Level;
+import utils.SimulationHost;
+import utils.SimulationSession;
+
 public class Start {
 
 	public static void main(String[] args) {
-		// Create the application window and start the application thread
-		Application app = new Application("Doom Game", 1200, 720);
-		app.start();
+		try {
+			// Benchmark rendering along a scripted camera path without a window
+			if((args.length >= 3) && args[0].equals("--benchmark")) {
+				runBenchmark(args);
+				return;
+			}
+			
+			// Run many copies of a level at once without any windows or rendering, as a dedicated server would
+			if((args.length >= 4) && args[0].equals("--host")) {
+				runHost(args);
+				return;
+			}
+			
+			// Run a game server without a window, which updates the level and sends snapshots of it to each connected client
+			if((args.length >= 3) && args[0].equals("--server")) {
+				final int tickRate = ((args.length >= 5) && args[3].equals("--tick-rate")) ? Integer.parseInt(args[4]) : 60;
+				new GameServer(new Level(args[1]), Integer.parseInt(args[2]), tickRate).run();
+				return;
+			}
+			
+			// Run a server and several clients in this process over loopback, checking that every client ends up with the server's state
+			if((args.length >= 4) && args[0].equals("--loopback-test")) {
+				if(!runLoopbackTest(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3])))
+					System.exit(1);
+				return;
+			}
+			
+			// Check that the update and render loop doesn't allocate once it has warmed up
+			if((args.length >= 2) && args[0].equals("--allocation-check")) {
+				final Application app = new Application();
+				if(Arrays.asList(args).contains("--indexed")) app.enableIndexedRendering();
+				for(int i = 2; i < args.length; i++) {
+					if(args[i].equals("--indexed")) continue;
+					else if(args[i].equals("--target-fps") && ((i + 1) < args.length)) app.enableDynamicResolution(0.5f, 2.0f, Integer.parseInt(args[++i]));
+					else if(args[i].equals("--views") && ((i + 1) < args.length)) app.enableSplitScreen(Integer.parseInt(args[++i]));
+					else if(args[i].equals("--tiled") && ((i + 1) < args.length)) app.enableTiledRendering(Integer.parseInt(args[++i]));
+					else if(args[i].equals("--capture") && ((i + 1) < args.length)) app.startVideoCapture(args[++i]);
+					else if(args[i].equals("--frame-reuse")) app.enableFrameReuse();
+					else System.err.println("Ignoring unknown allocation check option '" + args[i] + "'");
+				}
+				if(!app.runAllocationCheck(Integer.parseInt(args[1]), Integer.parseInt(args[1])))
+					System.exit(1);
+				return;
+			}
+			
+			// Replay a recorded session, either in the application window or headless (writing a report of each frame)
+			if((args.length >= 2) && args[0].equals("--replay")) {
+				final boolean isHeadless = (args.length >= 3) && args[2].equals("--headless");
+				final Application app = isHeadless ? new Application() : new Application("Doom Game - Replay", 1200, 720);
+				app.startReplay(args[1]);
+				if(isHeadless) {
+					app.runHeadlessReplay(args[1] + ".frames.csv");
+				} else {
+					app.start();
+				}
+				return;
+			}
+			
+			// Create the application window and start the application thread (recording the session or changing how frames are rendered if requested)
+			Application app = new Application("Doom Game", 1200, 720);
+			if(Arrays.asList(args).contains("--indexed")) app.enableIndexedRendering();
+			for(int i = 0; i < args.length; i++) {
+				if(args[i].equals("--indexed")) continue;
+				else if(args[i].equals("--record") && ((i + 1) < args.length)) app.startRecording(args[++i]);
+				else if(args[i].equals("--target-fps") && ((i + 1) < args.length)) app.enableDynamicResolution(0.5f, 2.0f, Integer.parseInt(args[++i]));
+				else if(args[i].equals("--views") && ((i + 1) < args.length)) app.enableSplitScreen(Integer.parseInt(args[++i]));
+				else if(args[i].equals("--level") && ((i + 1) < args.length)) app.setLevelName(args[++i]);
+				else if(args[i].equals("--renderer") && ((i + 1) < args.length)) selectRenderer(app, args[++i]);
+				else if(args[i].equals("--fov") && ((i + 1) < args.length)) app.setFieldOfView(Float.parseFloat(args[++i]));
+				else if(args[i].equals("--warmup") && ((i + 1) < args.length)) app.enableWarmup(Integer.parseInt(args[++i]));
+				else if(args[i].equals("--capture") && ((i + 1) < args.length)) app.startVideoCapture(args[++i]);
+				else if(args[i].equals("--connect") && ((i + 2) < args.length)) app.connectToServer(args[++i], Integer.parseInt(args[++i]));
+				else System.err.println("Ignoring unknown option '" + args[i] + "'");
+			}
+			app.start();
+		} catch (IOException e) {
+			System.err.println("Failed to start the game - " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			// A number that doesn't parse (or is out of range) leaves nothing sensible to run, so show what the options should look like and exit
+			// (rather than leaving an empty window open)
+			System.err.println("Invalid option - " + e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+	}
+	
+	private static void printUsage() {
+		System.err.println("Usage: [--level <name>] [--indexed] [--record <file>] [--target-fps <fps>] [--views <count>] [--renderer <raycast|portal>]");
+		System.err.println("           [--fov <degrees>] [--warmup <frames>] [--capture <file>] [--connect <host> <port>]");
+		System.err.println("       --replay <file> [--headless]");
+		System.err.println("       --benchmark <level> <frames> [--indexed] [--path <file>] [--report <file>] [--golden <file>] [--capture <file>] [--renderer <raycast|portal>]");
+		System.err.println("           [--tiled <threads>] [--resolution <width> <height>] [--fov <degrees>] [--warmup <frames>]");
+		System.err.println("       --server <level> <port> [--tick-rate <ticks>]");
+		System.err.println("       --host <level> <sessions> <seconds> [--tick-rate <ticks>] [--threads <count>]");
+		System.err.println("       --loopback-test <level> <clients> <seconds>");
+		System.err.println("       --allocation-check <frames> [--indexed] [--target-fps <fps>] [--views <count>] [--tiled <threads>] [--capture <file>] [--frame-reuse]");
+	}
+	
+	private static void runBenchmark(String[] args) throws IOException {
+		// Expects: --benchmark <level> <frames> [--indexed] [--path <file>] [--report <file>] [--golden <file>] [--capture <file>] [--renderer <raycast|portal>]
+		//          [--tiled <threads>] [--resolution <width> <height>] [--fov <degrees>]
+		//          [--warmup <frames>]
+		final String levelName = args[1];
+		final int frameCount = Integer.parseInt(args[2]);
+		CameraPath cameraPath = null;
+		String reportPath = "benchmark_" + levelName + ".csv";
+		String goldenPath = null;
+		final Application app = new Application();
+		app.setLevelName(levelName);
+		for(int i = 3; i < args.length; i++) {
+			if(args[i].equals("--indexed")) app.enableIndexedRendering();
+			else if(args[i].equals("--renderer") && ((i + 1) < args.length)) selectRenderer(app, args[++i]);
+			else if(args[i].equals("--path") && ((i + 1) < args.length)) cameraPath = new CameraPath(args[++i]);
+			else if(args[i].equals("--report") && ((i + 1) < args.length)) reportPath = args[++i];
+			else if(args[i].equals("--golden") && ((i + 1) < args.length)) goldenPath = args[++i];
+			else if(args[i].equals("--capture") && ((i + 1) < args.length)) app.startVideoCapture(args[++i]);
+			else if(args[i].equals("--tiled") && ((i + 1) < args.length)) app.enableTiledRendering(Integer.parseInt(args[++i]));
+			else if(args[i].equals("--resolution") && ((i + 2) < args.length)) app.setRenderResolution(Integer.parseInt(args[++i]), Integer.parseInt(args[++i]));
+			else if(args[i].equals("--fov") && ((i + 1) < args.length)) app.setFieldOfView(Float.parseFloat(args[++i]));
+			else if(args[i].equals("--warmup") && ((i + 1) < args.length)) app.enableWarmup(Integer.parseInt(args[++i]));
+			else System.err.println("Ignoring unknown benchmark option '" + args[i] + "'");
+		}
+		
+		if(!app.runBenchmark(frameCount, cameraPath, reportPath, goldenPath))
+			System.exit(1);
+	}
+	
+	private static void selectRenderer(Application app, String rendererName) {
+		if(rendererName.equals("portal")) app.enablePortalRenderer();
+		else if(!rendererName.equals("raycast")) System.err.println("Unknown renderer '" + rendererName + "', using the ray caster");
+	}
+	
+	private static void runHost(String[] args) {
+		// Expects: --host <level> <sessions> <seconds> [--tick-rate <ticks>] [--threads <count>]
+		final String levelName = args[1];
+		final int sessionCount = Integer.parseInt(args[2]);
+		final int seconds = Integer.parseInt(args[3]);
+		int tickRate = 60;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		for(int i = 4; i < args.length; i++) {
+			if(args[i].equals("--tick-rate") && ((i + 1) < args.length)) tickRate = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--threads") && ((i + 1) < args.length)) threadCount = Integer.parseInt(args[++i]);
+			else System.err.println("Ignoring unknown host option '" + args[i] + "'");
+		}
+		
+		// Load the level once, and give every session its own copy of it. Each session has a simple bot that walks forwards while turning, so
+		// that the player moves around and the mobs chase it.
+		final Level template = new Level(levelName);
+		final SimulationHost host = new SimulationHost(tickRate, threadCount);
+		final long hostStartTime = System.nanoTime();
+		for(int i = 0; i < sessionCount; i++) {
+			final SimulationSession session = host.addSession(new Level(template));
+			session.applyKeyEvent(KeyEvent.VK_W, true);
+			session.applyKeyEvent(((i % 2) == 0) ? KeyEvent.VK_LEFT : KeyEvent.VK_RIGHT, true);
+		}
+		
+		try {
+			Thread.sleep(seconds * 1000L);
+		} catch (InterruptedException e) {
+			System.err.println("Simulation host was interrupted - " + e.getMessage());
+		}
+		host.stop();
+		System.out.print(host.getReport((System.nanoTime() - hostStartTime) / 1000000000.0));
+	}
+	
+	private static boolean runLoopbackTest(String levelName, int clientCount, int seconds) throws IOException {
+		// Start the server on any free port, with its own copy of the level
+		final Level template = new Level(levelName);
+		final GameServer server = new GameServer(new Level(template), 0, 60);
+		final Thread serverThread = new Thread(server::run, "Game Server");
+		serverThread.start();
+		
+		// The first client walks forwards while turning, so the player and the mobs chasing it move around
+		final GameClient[] clients = new GameClient[clientCount];
+		final Level[] clientLevels = new Level[clientCount];
+		for(int i = 0; i < clientCount; i++) {
+			clients[i] = new GameClient("127.0.0.1", server.getPort());
+			clientLevels[i] = new Level(template);
+		}
+		final InputHandler botInput = new InputHandler();
+		final InputHandler idleInput = new InputHandler();
+		botInput.applyKeyEvent(KeyEvent.VK_W, true);
+		botInput.applyKeyEvent(KeyEvent.VK_RIGHT, true);
+		
+		// Run the clients at the same rate as the server, releasing the keys for the last second so that everything comes to rest
+		final long testEndTime = System.nanoTime() + (seconds * 1000000000L);
+		try {
+			while(System.nanoTime() < testEndTime) {
+				final boolean isSettling = ((testEndTime - System.nanoTime()) < 1000000000L);
+				for(int i = 0; i < clientCount; i++) {
+					clients[i].sendInput(((i == 0) && !isSettling) ? botInput : idleInput);
+					if(clients[i].receive()) clients[i].applyTo(clientLevels[i]);
+				}
+				Thread.sleep(1000 / 60);
+			}
+			server.stop();
+			serverThread.join();
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			System.err.println("Loopback test was interrupted - " + e.getMessage());
+		}
+		
+		// Every client should have received the final state of the level
+		final Snapshot serverSnapshot = server.getLatestSnapshot();
+		boolean allClientsMatch = true;
+		for(int i = 0; i < clientCount; i++) {
+			clients[i].receive();
+			final Snapshot clientSnapshot = clients[i].getLatestSnapshot();
+			final boolean clientMatches = (clientSnapshot != null) && clientSnapshot.matches(serverSnapshot);
+			allClientsMatch &= clientMatches;
+			System.out.println("Client " + i + " received " + (clients[i].getBytesReceived() / seconds) + " bytes per second, up to tick " + clients[i].getLatestTick() + " of " + serverSnapshot.tick + (clientMatches ? " (matches the server)" : " (does not match the server)"));
+			clients[i].close();
+		}
+		return allClientsMatch;
 	}
 	
 }
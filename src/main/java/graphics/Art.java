@@ -13,6 +13,9 @@ public class Art {
 	public static final Sprite MOB_WOLF_2;
 	public static final Sprite MOB_GHOST;
 	
+	// Every sprite that can be drawn in the world
+	public static final Sprite[] ALL_SPRITES;
+	
 	static {
 		final Sprite spritesheet = new Sprite("assets/art/spritesheet.png");
 		
@@ -21,6 +24,16 @@ public class Art {
 		MOB_WOLF_1 = spritesheet.getSubsection(0, 16, 32, 64);
 		MOB_WOLF_2 = spritesheet.getSubsection(32, 16, 32, 64);
 		MOB_GHOST = spritesheet.getSubsection(0, 80, 16, 16);
+		
+		ALL_SPRITES = new Sprite[] { TILE_GRASS, WALL_BRICK, MOB_WOLF_1, MOB_WOLF_2, MOB_GHOST };
+	}
+	
+	// Sprites are stored by their index in ALL_SPRITES when sent over the network or saved, as that is the same every time the game runs
+	public static int getSpriteIndex(Sprite sprite) {
+		for(int i = 0; i < ALL_SPRITES.length; i++) {
+			if(ALL_SPRITES[i] == sprite) return i;
+		}
+		return -1;
 	}
 	
 }
@@ -5,8 +5,12 @@ import utils.Wall;
 
 public class Camera {
 	
+	// The angle across the width of the screen (in radians)
+	public static final float DEFAULT_FIELD_OF_VIEW = 1.0f;
+	
 	public float x, y, z, angle;
 	public final float minRenderDistance, maxRenderDistance;
+	public float fieldOfView = DEFAULT_FIELD_OF_VIEW;
 	
 	public Camera(float nearPlane, float farPlane) {
 		x = 0;
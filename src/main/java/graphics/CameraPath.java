@@ -0,0 +1,65 @@
+package graphics;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class CameraPath {
+
+	// Each waypoint is stored as its X, Y, Z position and angle, and the camera moves between them in a straight line. Every pair of waypoints takes
+	// the same share of the path however far apart they are, so the camera moves faster between waypoints that are further apart.
+	private final ArrayList<float[]> waypoints = new ArrayList<float[]>();
+	
+	public CameraPath() {
+	}
+	
+	public CameraPath(String path) throws IOException {
+		// Each line of a path file holds a waypoint as "x y z angle" (in world units and radians). Blank lines and lines starting with '#' are ignored.
+		try(BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line;
+			int lineNumber = 0;
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+				
+				final String[] values = line.split("\\s+");
+				if(values.length != 4)
+					throw new IOException("Line " + lineNumber + " of camera path '" + path + "' should contain 4 values");
+				try {
+					addWaypoint(Float.parseFloat(values[0]), Float.parseFloat(values[1]), Float.parseFloat(values[2]), Float.parseFloat(values[3]));
+				} catch (NumberFormatException e) {
+					throw new IOException("Line " + lineNumber + " of camera path '" + path + "' contains an invalid number - " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	public void addWaypoint(float x, float y, float z, float angle) {
+		waypoints.add(new float[] { x, y, z, angle });
+	}
+	
+	public int getWaypointCount() { return waypoints.size(); }
+	
+	public void applyTo(Camera camera, float progress) {
+		if(waypoints.isEmpty())
+			return;
+		
+		// Work out which two waypoints the camera is between, and how far it is from the first to the second
+		final float clampedProgress = Math.max(0, Math.min(1, progress));
+		final float waypointPosition = clampedProgress * (waypoints.size() - 1);
+		final int fromIndex = Math.min((int) waypointPosition, waypoints.size() - 1);
+		final int toIndex = Math.min(fromIndex + 1, waypoints.size() - 1);
+		final float blend = waypointPosition - fromIndex;
+		
+		final float[] from = waypoints.get(fromIndex);
+		final float[] to = waypoints.get(toIndex);
+		camera.x = from[0] + (to[0] - from[0]) * blend;
+		camera.y = from[1] + (to[1] - from[1]) * blend;
+		camera.z = from[2] + (to[2] - from[2]) * blend;
+		camera.angle = from[3] + (to[3] - from[3]) * blend;
+	}
+	
+}
@@ -0,0 +1,75 @@
+package graphics;
+
+public class DynamicResolution {
+
+	// The resolution steps up and down by an eighth of the base resolution at a time
+	private static final float SCALE_STEP = 0.125f;
+	// Frame times are averaged over this many frames before deciding whether to change resolution
+	private static final int FRAMES_PER_DECISION = 30;
+	// Lowering the resolution happens as soon as frames are too slow, but raising it needs this many fast decisions in a row (and much more
+	// headroom), so that the resolution doesn't flicker between two steps
+	private static final int FAST_DECISIONS_BEFORE_INCREASE = 3;
+	private static final float INCREASE_THRESHOLD = 0.7f;
+	
+	// Every render pane the controller can switch to is created up-front, so changing resolution during the game never allocates
+	public final RenderPane3D[] renderPanes;
+	private int currentPaneIndex;
+	
+	private final long targetFrameNanoseconds;
+	private long accumulatedFrameNanoseconds = 0;
+	private int accumulatedFrameCount = 0;
+	private int consecutiveFastDecisions = 0;
+	
+	public DynamicResolution(int baseWidth, int baseHeight, float minScale, float maxScale, int targetFps, Palette palette) {
+		targetFrameNanoseconds = 1000000000L / targetFps;
+		
+		final int paneCount = Math.max(1, (int) Math.floor((maxScale - minScale) / SCALE_STEP + 0.001f) + 1);
+		renderPanes = new RenderPane3D[paneCount];
+		currentPaneIndex = 0;
+		for(int i = 0; i < paneCount; i++) {
+			final float scale = minScale + i * SCALE_STEP;
+			renderPanes[i] = new RenderPane3D(Math.max(1, Math.round(baseWidth * scale)), Math.max(1, Math.round(baseHeight * scale)), palette);
+			
+			// Start at the base resolution (or the closest step to it)
+			if(Math.abs(scale - 1.0f) < Math.abs((minScale + currentPaneIndex * SCALE_STEP) - 1.0f))
+				currentPaneIndex = i;
+		}
+	}
+	
+	public RenderPane3D getRenderPane() { return renderPanes[currentPaneIndex]; }
+	
+	public boolean recordFrame(long frameNanoseconds) {
+		accumulatedFrameNanoseconds += frameNanoseconds;
+		accumulatedFrameCount++;
+		if(accumulatedFrameCount < FRAMES_PER_DECISION)
+			return false;
+		
+		final long averageFrameNanoseconds = accumulatedFrameNanoseconds / accumulatedFrameCount;
+		accumulatedFrameNanoseconds = 0;
+		accumulatedFrameCount = 0;
+		
+		// Drop the resolution straight away if frames are taking too long
+		if(averageFrameNanoseconds > targetFrameNanoseconds) {
+			consecutiveFastDecisions = 0;
+			if(currentPaneIndex > 0) {
+				currentPaneIndex--;
+				return true;
+			}
+			return false;
+		}
+		
+		// Only raise the resolution once there has been plenty of spare time for a while
+		if(averageFrameNanoseconds < (targetFrameNanoseconds * INCREASE_THRESHOLD)) {
+			consecutiveFastDecisions++;
+			if((consecutiveFastDecisions >= FAST_DECISIONS_BEFORE_INCREASE) && (currentPaneIndex < (renderPanes.length - 1))) {
+				consecutiveFastDecisions = 0;
+				currentPaneIndex++;
+				return true;
+			}
+		} else {
+			consecutiveFastDecisions = 0;
+		}
+		return false;
+	}
+	
+}
@@ -1,10 +1,14 @@
 package graphics;
 
+import utils.DynamicLight;
+
 public class Entity {
 
 	public float x, y, z;
 	public Sprite sprite;
 	public float scale = 1.0f;
+	// Entities that give off light carry it around with them
+	public DynamicLight light = null;
 	
 	public Entity(float x, float y, float z, Sprite sprite) {
 		this.x = x;
@@ -0,0 +1,65 @@
+package graphics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class FrameBarrier {
+
+	// How many times a thread checks for the barrier opening before it parks. Frames are short, so most waits end while still spinning (unless
+	// there is only one core, where spinning just holds up the thread being waited for).
+	private static final int SPIN_COUNT = (Runtime.getRuntime().availableProcessors() > 1) ? 2000 : 0;
+
+	// A barrier the same threads meet at over and over. Unlike a Phaser, waiting never allocates anything: each thread has its own slot, and
+	// the last thread to arrive opens the barrier by moving on the generation and waking whichever threads went to sleep waiting for it.
+	private final int partyCount;
+	private final AtomicInteger arrivedCount = new AtomicInteger();
+	private final AtomicReferenceArray<Thread> waitingThreads;
+	private volatile int generation = 0;
+
+	public FrameBarrier(int partyCount) {
+		if(partyCount < 1)
+			throw new IllegalArgumentException("A frame barrier needs at least one thread, not " + partyCount);
+
+		this.partyCount = partyCount;
+		waitingThreads = new AtomicReferenceArray<>(partyCount);
+	}
+
+	public void arriveAndAwait(int partyIndex) {
+		final int arrivedGeneration = generation;
+		if(arrive())
+			return;
+
+		for(int spin = 0; spin < SPIN_COUNT; spin++) {
+			if(generation != arrivedGeneration)
+				return;
+			Thread.onSpinWait();
+		}
+
+		// Say where to find this thread before checking the generation one last time, so that either the last thread to arrive sees it and
+		// wakes it, or it sees the new generation and never sleeps. Being woken early (or by an old wake-up) just means checking again.
+		waitingThreads.set(partyIndex, Thread.currentThread());
+		while(generation == arrivedGeneration) {
+			LockSupport.park(this);
+		}
+		waitingThreads.set(partyIndex, null);
+	}
+
+	public boolean arrive() {
+		// Arriving without waiting lets the other threads go for the last time when shutting down
+		if(arrivedCount.incrementAndGet() != partyCount)
+			return false;
+
+		// Every thread is here, so start the next generation before waking anyone (the count has to be reset first, as woken threads may arrive
+		// again straight away)
+		arrivedCount.set(0);
+		generation = generation + 1;
+		for(int i = 0; i < partyCount; i++) {
+			final Thread waitingThread = waitingThreads.get(i);
+			if(waitingThread != null)
+				LockSupport.unpark(waitingThread);
+		}
+		return true;
+	}
+
+}
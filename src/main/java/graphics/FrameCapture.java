@@ -0,0 +1,269 @@
+package graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+
+public class FrameCapture {
+
+	// Video files start with this, followed by each frame as: long timestamp (ns), int width, int height, then width * height ARGB ints. Everything
+	// after the header is compressed with deflate.
+	public static final int VIDEO_MAGIC = 0x44564944;
+	public static final int VIDEO_VERSION = 1;
+	
+	private static class CapturedFrame {
+		int[] pixels;
+		byte[] indexedPixels;
+		Palette palette;
+		int width, height;
+		long timestamp;
+		int screenshotNumber;
+	}
+	
+	// Queued after the last frame of a video, telling the writer that the video has ended
+	private static final CapturedFrame END_OF_VIDEO = new CapturedFrame();
+	
+	// Frames are copied into a fixed ring of buffers on the game thread, and encoded on background threads. If the encoders fall behind and
+	// every buffer is in use, frames are dropped rather than making the game wait.
+	private final int bufferCount;
+	private final ArrayBlockingQueue<CapturedFrame> freeFrames;
+	private final ExecutorService screenshotEncoders;
+	private final AtomicLong droppedFrameCount = new AtomicLong(0);
+	
+	// Each video has its own queue of frames, so a video that is still being finished off can never pick up frames meant for the next one. Only
+	// the game thread starts and stops videos and queues frames, so the end of the video is always queued after its last frame, and the writer
+	// hands back every frame it is given.
+	private ArrayBlockingQueue<CapturedFrame> videoFrames = null;
+	private Thread videoWriterThread = null;
+	private boolean isRecordingVideo = false;
+	private volatile boolean hasVideoFailed = false;
+	private long videoFrameCount = 0;
+	private int screenshotCount = 0;
+	
+	public FrameCapture(int bufferCount, int maxWidth, int maxHeight, boolean isIndexed) {
+		// The buffers are made big enough for the largest frame that will be captured (such as the highest dynamic resolution), so copying a frame
+		// never has to allocate
+		this.bufferCount = bufferCount;
+		freeFrames = new ArrayBlockingQueue<CapturedFrame>(bufferCount);
+		for(int i = 0; i < bufferCount; i++) {
+			final CapturedFrame frame = new CapturedFrame();
+			frame.pixels = new int[maxWidth * maxHeight];
+			if(isIndexed) frame.indexedPixels = new byte[maxWidth * maxHeight];
+			freeFrames.add(frame);
+		}
+		
+		screenshotEncoders = Executors.newFixedThreadPool(2, runnable -> {
+			final Thread thread = new Thread(runnable, "Screenshot Encoder");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+	
+	public void touchBuffers() {
+		// Write to every free buffer once, so that the memory behind them is handed over by the OS before the game starts rather than the first
+		// time a frame is captured. Only the game thread takes buffers, so none can be taken while this runs.
+		for(CapturedFrame frame : freeFrames) {
+			Arrays.fill(frame.pixels, 0);
+			if(frame.indexedPixels != null) Arrays.fill(frame.indexedPixels, (byte) 0);
+		}
+	}
+	
+	public boolean isRecordingVideo() { return isRecordingVideo; }
+	public long getDroppedFrameCount() { return droppedFrameCount.get(); }
+	
+	public void takeScreenshot(RenderPane3D renderPane) {
+		final CapturedFrame frame = copyFrame(renderPane);
+		if(frame == null)
+			return;
+		
+		frame.screenshotNumber = ++screenshotCount;
+		screenshotEncoders.execute(() -> writeScreenshot(frame));
+	}
+	
+	public void startVideo(String path) {
+		if(isRecordingVideo)
+			return;
+		
+		// The file is opened by the writer, so the game thread never waits on the disk. If it can't be opened, the video stops on the next frame.
+		// There is room for the end of the video as well as every frame buffer
+		final ArrayBlockingQueue<CapturedFrame> frames = new ArrayBlockingQueue<CapturedFrame>(bufferCount + 1);
+		videoFrames = frames;
+		isRecordingVideo = true;
+		hasVideoFailed = false;
+		videoFrameCount = 0;
+		droppedFrameCount.set(0);
+		videoWriterThread = new Thread(() -> writeVideo(path, frames), "Video Encoder");
+		videoWriterThread.setPriority(Thread.MIN_PRIORITY);
+		videoWriterThread.start();
+		System.out.println("Recording video to " + path);
+	}
+	
+	public void captureVideoFrame(RenderPane3D renderPane) {
+		if(!isRecordingVideo)
+			return;
+		if(hasVideoFailed) {
+			stopVideo();
+			return;
+		}
+		
+		final CapturedFrame frame = copyFrame(renderPane);
+		if(frame == null)
+			return;
+		videoFrameCount++;
+		videoFrames.add(frame);
+	}
+	
+	public void stopVideo() {
+		if(!isRecordingVideo)
+			return;
+		
+		// The writer finishes off any frames still waiting in the background, so the game never waits for them to be encoded
+		isRecordingVideo = false;
+		videoFrames.add(END_OF_VIDEO);
+		videoFrames = null;
+		System.out.println("Recorded " + videoFrameCount + " video frames (" + droppedFrameCount.get() + " dropped)");
+	}
+	
+	public void close() {
+		stopVideo();
+		if(videoWriterThread != null) {
+			try {
+				videoWriterThread.join();
+			} catch (InterruptedException e) {
+				System.err.println("Failed to wait for the video encoder to finish - " + e.getMessage());
+			}
+		}
+		screenshotEncoders.shutdown();
+		try {
+			screenshotEncoders.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			System.err.println("Failed to wait for screenshots to be written - " + e.getMessage());
+		}
+	}
+	
+	private CapturedFrame copyFrame(RenderPane3D renderPane) {
+		final CapturedFrame frame = freeFrames.poll();
+		if(frame == null) {
+			droppedFrameCount.incrementAndGet();
+			return null;
+		}
+		
+		// Only copy the frame here, leaving any conversion of palette indices to colours to the encoder. The buffers only grow if the frame is
+		// bigger than the capture was created for, which the game never does.
+		final int pixelCount = renderPane.width * renderPane.height;
+		frame.width = renderPane.width;
+		frame.height = renderPane.height;
+		frame.timestamp = System.nanoTime();
+		frame.palette = renderPane.palette;
+		if(renderPane.indexedPixels != null) {
+			if((frame.indexedPixels == null) || (frame.indexedPixels.length < pixelCount)) frame.indexedPixels = new byte[pixelCount];
+			System.arraycopy(renderPane.indexedPixels, 0, frame.indexedPixels, 0, pixelCount);
+		} else {
+			if(frame.pixels.length < pixelCount) frame.pixels = new int[pixelCount];
+			System.arraycopy(renderPane.pixels, 0, frame.pixels, 0, pixelCount);
+		}
+		return frame;
+	}
+	
+	private void resolveColours(CapturedFrame frame) {
+		if(frame.palette == null)
+			return;
+		
+		final int pixelCount = frame.width * frame.height;
+		if(frame.pixels.length < pixelCount) frame.pixels = new int[pixelCount];
+		for(int i = 0; i < pixelCount; i++) {
+			frame.pixels[i] = frame.palette.colours[frame.indexedPixels[i] & 0xff];
+		}
+	}
+	
+	private void writeScreenshot(CapturedFrame frame) {
+		final String path = "screenshot_" + System.currentTimeMillis() + "_" + frame.screenshotNumber + ".png";
+		try {
+			resolveColours(frame);
+			final BufferedImage image = new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB);
+			image.setRGB(0, 0, frame.width, frame.height, frame.pixels, 0, frame.width);
+			ImageIO.write(image, "png", new File(path));
+			System.out.println("Saved screenshot to " + path);
+		} catch (IOException e) {
+			System.err.println("Failed to save screenshot - " + e.getMessage());
+		} finally {
+			freeFrames.add(frame);
+		}
+	}
+	
+	private void writeVideo(String path, ArrayBlockingQueue<CapturedFrame> frames) {
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		ByteBuffer frameBytes = ByteBuffer.allocate(0);
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+			output.writeInt(VIDEO_MAGIC);
+			output.writeShort(VIDEO_VERSION);
+			output.flush();
+			output = new DataOutputStream(new DeflaterOutputStream(output, deflater, 65536));
+		} catch (IOException e) {
+			// Frames still arrive until the game thread sees that the video has failed, so they are handed back below without being written
+			System.err.println("Failed to start recording video to " + path + " - " + e.getMessage());
+			if(output != null) closeVideo(output, path);
+			output = null;
+			hasVideoFailed = true;
+		}
+		
+		try {
+			// Keep taking frames until the end of the video, even if writing fails part way through, so that every frame is handed back
+			CapturedFrame frame;
+			while((frame = frames.take()) != END_OF_VIDEO) {
+				try {
+					if(output == null)
+						continue;
+					resolveColours(frame);
+					final int pixelCount = frame.width * frame.height;
+					if(frameBytes.capacity() < (pixelCount * 4)) frameBytes = ByteBuffer.allocate(pixelCount * 4);
+					frameBytes.clear();
+					frameBytes.asIntBuffer().put(frame.pixels, 0, pixelCount);
+					
+					output.writeLong(frame.timestamp);
+					output.writeInt(frame.width);
+					output.writeInt(frame.height);
+					output.write(frameBytes.array(), 0, pixelCount * 4);
+				} catch (IOException e) {
+					System.err.println("Failed to write video to " + path + " - " + e.getMessage());
+					closeVideo(output, path);
+					output = null;
+					hasVideoFailed = true;
+				} finally {
+					freeFrames.add(frame);
+				}
+			}
+		} catch (InterruptedException e) {
+			System.err.println("Video encoder was interrupted - " + e.getMessage());
+		} finally {
+			if(output != null) closeVideo(output, path);
+			deflater.end();
+		}
+	}
+	
+	private static void closeVideo(DataOutputStream output, String path) {
+		try {
+			output.close();
+		} catch (IOException e) {
+			System.err.println("Failed to finish writing video to " + path + " - " + e.getMessage());
+		}
+	}
+	
+}
@@ -0,0 +1,199 @@
+package graphics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import utils.LightMap;
+
+public class Palette {
+
+	public static final int COLOUR_COUNT = 256;
+	// The number of distances the fog is split into, each of which has its own colormap
+	public static final int SHADE_COUNT = 32;
+
+	public final int[] colours = new int[COLOUR_COUNT];
+	// For each shade, maps a palette index to the palette index of that colour with the fog for that shade blended in
+	public final byte[] colormap = new byte[SHADE_COUNT * COLOUR_COUNT];
+	public final byte fogIndex;
+
+	public Palette(Sprite[] sprites, int fogColour, float fogStrength) {
+		// Gather every colour that can end up on the screen, which is every sprite colour blended with the fog at every shade. The original sprite
+		// colours are needed too, as sprites are stored as their unfogged palette colour.
+		final HashMap<Integer, Integer> colourWeights = new HashMap<Integer, Integer>();
+		for(Sprite sprite : sprites) {
+			for(int i = 0; i < sprite.pixels.length; i++) {
+				// Transparent pixels are never drawn, so they don't need a place in the palette
+				if((sprite.pixels[i] == 0xff7f007f) || (sprite.pixels[i] == 0xffff00ff))
+					continue;
+				
+				colourWeights.merge(sprite.pixels[i] | 0xff000000, SHADE_COUNT, Integer::sum);
+				for(int shade = 0; shade < SHADE_COUNT; shade++) {
+					colourWeights.merge(applyFog(sprite.pixels[i], fogColour, fogStrength, shade), 1, Integer::sum);
+				}
+			}
+		}
+		colourWeights.merge(fogColour | 0xff000000, sprites.length * SHADE_COUNT, Integer::sum);
+
+		// Reduce the colours down to the palette size
+		buildPalette(colourWeights);
+		fogIndex = (byte) findClosestIndex(fogColour);
+
+		// Work out the fogged version of each palette colour at each shade
+		for(int shade = 0; shade < SHADE_COUNT; shade++) {
+			for(int i = 0; i < COLOUR_COUNT; i++) {
+				colormap[shade * COLOUR_COUNT + i] = (byte) findClosestIndex(applyFog(colours[i], fogColour, fogStrength, shade));
+			}
+		}
+
+		// Store the closest palette colour for every pixel of every sprite, so that rendering never needs to search the palette
+		final HashMap<Integer, Byte> closestIndices = new HashMap<Integer, Byte>();
+		for(Sprite sprite : sprites) {
+			sprite.paletteIndices = new byte[sprite.pixels.length];
+			for(int i = 0; i < sprite.pixels.length; i++) {
+				final int colour = sprite.pixels[i];
+				Byte closestIndex = closestIndices.get(colour);
+				if(closestIndex == null) {
+					closestIndex = (byte) findClosestIndex(colour);
+					closestIndices.put(colour, closestIndex);
+				}
+				sprite.paletteIndices[i] = closestIndex;
+			}
+		}
+	}
+
+	public int getShadeOffset(float z, float maxDistance, int light) {
+		// Darker pixels are pushed further into the fog, as the fog fades towards the colour of an unlit pixel
+		final int shade = (int) ((z / maxDistance) * SHADE_COUNT) + (((LightMap.FULL_BRIGHT - light) * SHADE_COUNT) / (LightMap.FULL_BRIGHT + 1));
+		return Math.max(0, Math.min(SHADE_COUNT - 1, shade)) * COLOUR_COUNT;
+	}
+
+	private static int applyFog(int colour, int fogColour, float fogStrength, int shade) {
+		// This matches the blend used by RenderPane3D.applyFog, using the distance at the middle of the shade
+		final float fogAlpha = (1.0f - ((shade + 0.5f) / SHADE_COUNT)) * fogStrength;
+		final int red = (int) ((((colour >> 16) & 0xff) * fogAlpha) + (((fogColour >> 16) & 0xff) * (1.0f - fogAlpha)));
+		final int green = (int) ((((colour >> 8) & 0xff) * fogAlpha) + (((fogColour >> 8) & 0xff) * (1.0f - fogAlpha)));
+		final int blue = (int) (((colour & 0xff) * fogAlpha) + ((fogColour & 0xff) * (1.0f - fogAlpha)));
+		return (0xff000000 | (red << 16) | (green << 8) | blue);
+	}
+
+	private void buildPalette(HashMap<Integer, Integer> colourWeights) {
+		// Use median cut: repeatedly split the box of colours with the widest range of any channel at its weighted median, until there is a box
+		// for each palette entry (or every colour has its own box)
+		final ArrayList<int[]> boxes = new ArrayList<int[]>();
+		final int[] allColours = new int[colourWeights.size()];
+		final int[] allWeights = new int[colourWeights.size()];
+		int colourIndex = 0;
+		for(Map.Entry<Integer, Integer> entry : colourWeights.entrySet()) {
+			allColours[colourIndex] = entry.getKey();
+			allWeights[colourIndex] = entry.getValue();
+			colourIndex++;
+		}
+		final int[] indices = new int[allColours.length];
+		for(int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		boxes.add(indices);
+
+		while(boxes.size() < COLOUR_COUNT) {
+			// Find the box with the widest channel range
+			int widestBoxIndex = -1;
+			int widestChannelShift = 0;
+			int widestRange = 0;
+			for(int i = 0; i < boxes.size(); i++) {
+				final int[] box = boxes.get(i);
+				if(box.length < 2)
+					continue;
+				for(int shift = 0; shift <= 16; shift += 8) {
+					final int range = getChannelRange(allColours, box, shift);
+					if(range > widestRange) {
+						widestRange = range;
+						widestBoxIndex = i;
+						widestChannelShift = shift;
+					}
+				}
+			}
+			if(widestBoxIndex < 0)
+				break;
+
+			// Sort the box along that channel and split it where half of its weight is on each side
+			final int[] box = boxes.remove(widestBoxIndex);
+			final int channelShift = widestChannelShift;
+			final Integer[] sortedBox = new Integer[box.length];
+			for(int i = 0; i < box.length; i++) {
+				sortedBox[i] = box[i];
+			}
+			Arrays.sort(sortedBox, (a, b) -> ((allColours[a] >> channelShift) & 0xff) - ((allColours[b] >> channelShift) & 0xff));
+
+			long totalWeight = 0;
+			for(int i = 0; i < sortedBox.length; i++) {
+				totalWeight += allWeights[sortedBox[i]];
+			}
+			int splitIndex = 1;
+			long runningWeight = allWeights[sortedBox[0]];
+			while((splitIndex < (sortedBox.length - 1)) && ((runningWeight * 2) < totalWeight)) {
+				runningWeight += allWeights[sortedBox[splitIndex]];
+				splitIndex++;
+			}
+
+			final int[] lowerBox = new int[splitIndex];
+			final int[] upperBox = new int[sortedBox.length - splitIndex];
+			for(int i = 0; i < sortedBox.length; i++) {
+				if(i < splitIndex) lowerBox[i] = sortedBox[i];
+				else upperBox[i - splitIndex] = sortedBox[i];
+			}
+			boxes.add(lowerBox);
+			boxes.add(upperBox);
+		}
+
+		// Each palette colour is the weighted average of the colours in its box (any unused entries are left black)
+		for(int i = 0; i < boxes.size(); i++) {
+			final int[] box = boxes.get(i);
+			long red = 0, green = 0, blue = 0, totalWeight = 0;
+			for(int j = 0; j < box.length; j++) {
+				final int colour = allColours[box[j]];
+				final int weight = allWeights[box[j]];
+				red += ((colour >> 16) & 0xff) * (long) weight;
+				green += ((colour >> 8) & 0xff) * (long) weight;
+				blue += (colour & 0xff) * (long) weight;
+				totalWeight += weight;
+			}
+			colours[i] = (0xff000000 | ((int) (red / totalWeight) << 16) | ((int) (green / totalWeight) << 8) | (int) (blue / totalWeight));
+		}
+		for(int i = boxes.size(); i < COLOUR_COUNT; i++) {
+			colours[i] = 0xff000000;
+		}
+	}
+
+	private static int getChannelRange(int[] allColours, int[] box, int channelShift) {
+		int minimum = 255, maximum = 0;
+		for(int i = 0; i < box.length; i++) {
+			final int value = (allColours[box[i]] >> channelShift) & 0xff;
+			minimum = Math.min(minimum, value);
+			maximum = Math.max(maximum, value);
+		}
+		return maximum - minimum;
+	}
+
+	int findClosestIndex(int colour) {
+		final int red = (colour >> 16) & 0xff;
+		final int green = (colour >> 8) & 0xff;
+		final int blue = colour & 0xff;
+
+		int closestIndex = 0;
+		int closestDistance = Integer.MAX_VALUE;
+		for(int i = 0; i < COLOUR_COUNT; i++) {
+			final int redDifference = ((colours[i] >> 16) & 0xff) - red;
+			final int greenDifference = ((colours[i] >> 8) & 0xff) - green;
+			final int blueDifference = (colours[i] & 0xff) - blue;
+			final int distance = (redDifference * redDifference) + (greenDifference * greenDifference) + (blueDifference * blueDifference);
+			if(distance < closestDistance) {
+				closestDistance = distance;
+				closestIndex = i;
+			}
+		}
+		return closestIndex;
+	}
+
+}
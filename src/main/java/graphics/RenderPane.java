@@ -7,19 +7,31 @@ public class RenderPane {
 
 	public final int width, height;
 
+	// Panes that keep their frame in some other form (such as palette indices) have no ARGB pixels or image
 	public final int[] pixels;
 	public final BufferedImage bufferedImage;
 	
 	public RenderPane(int width, int height) {
+		this(width, height, true);
+	}
+	
+	protected RenderPane(int width, int height, boolean hasArgbPixels) {
 		this.width = width;
 		this.height = height;
 		
 		// Create a buffered image and set the local pixels array to reference the contents of the image
-		bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		pixels = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+		if(hasArgbPixels) {
+			bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			pixels = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+		} else {
+			bufferedImage = null;
+			pixels = null;
+		}
 	}
 	
 	public void clear() {
+		if(pixels == null)
+			return;
 		for(int i = 0; i < pixels.length; i++) {
 			pixels[i] = 0xff000000;
 		}
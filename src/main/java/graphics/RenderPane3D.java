@@ -1,39 +1,176 @@
 package graphics;
 
-import utils.Level;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+
+import utils.LightMap;
 
 public class RenderPane3D extends RenderPane {
 
 	public final float[] zBuffer;
+	// Rather than resetting the Z buffer every frame, each pixel is stamped with the frame it was last drawn in. Any pixel with an older stamp
+	// counts as being at the maximum distance. The stamps are bytes, so they are only actually reset once every 255 frames.
+	public final byte[] depthGenerations;
+	private int currentGeneration = 0;
+	
+	// When a palette is provided, the frame is drawn as palette indices instead of ARGB colours, with the fog applied as each pixel is written
+	public final Palette palette;
+	public final byte[] indexedPixels;
+	private final BufferedImage indexedImage;
+	private float maxDistance;
+	
+	// Entities, fog and restoring the world layer only touch pixels inside the clip area, which is normally the whole pane
+	private int clipLeft, clipTop, clipRight, clipBottom;
+	private int[] savedPixels = null;
+	private byte[] savedIndexedPixels = null;
+	private float[] savedDepths = null;
+	
+	// The area of the screen (which may extend past the edges) and the depth of the last entity passed to projectEntity
+	public int projectedLeft, projectedTop, projectedRight, projectedBottom;
+	public float projectedDepth;
+	
+	// The projection for the camera last passed to updateProjection. Each pane sizes its own tables once for its resolution, so switching between
+	// panes never allocates. Each column has the sine and cosine of the angle of its ray from the centre of the screen (the cosine also corrects
+	// for the fishbowl effect), and each row has the distance to the floor or ceiling it shows. The tables are only rebuilt when the field of
+	// view changes, and the sine and cosine of the camera's angle only when it turns. The thread drawing the pane works all of this out before
+	// any other thread is handed part of the frame, so nothing is written while other threads read it.
+	public final float[] columnAngleSins, columnAngleCoses;
+	public final float[] rowFloorDistances;
+	// How much larger than at the default field of view everything is drawn, for the field of view of the tables
+	public float projectionZoom = 1;
+	public float cameraAngleSin, cameraAngleCos;
+	private float projectionFieldOfView = 0, projectionMinRenderDistance = 0;
+	// Columns are spread evenly across a flat screen in front of the camera, so the edges of the screen are this far to either side of the
+	// centre at a distance of one
+	private float projectionHalfWidthTan = 1;
+	private float projectionAngle = Float.NaN;
 
 	public RenderPane3D(int width, int height) {
-		super(width, height);		
+		this(width, height, null);
+	}
+	
+	public RenderPane3D(int width, int height, Palette palette) {
+		// Indexed panes never write ARGB colours, so they don't need the ARGB pixels or image at all
+		super(width, height, (palette == null));
 		zBuffer = new float[width * height];
+		depthGenerations = new byte[width * height];
+		columnAngleSins = new float[width];
+		columnAngleCoses = new float[width];
+		rowFloorDistances = new float[height];
+		
+		this.palette = palette;
+		if(palette != null) {
+			// The indexed image converts the palette indices to colours only when it is drawn to the window
+			indexedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, Palette.COLOUR_COUNT, palette.colours, 0, false, -1, DataBufferByte.TYPE_BYTE));
+			indexedPixels = ((DataBufferByte) indexedImage.getRaster().getDataBuffer()).getData();
+		} else {
+			indexedImage = null;
+			indexedPixels = null;
+		}
+		resetClip();
 	}
 	
 	public void clear(float maxDistance) {
-		for(int i = 0; i < pixels.length; i++) {
-			pixels[i] = 0xffff00ff;
-			zBuffer[i] = maxDistance;
+		this.maxDistance = maxDistance;
+		
+		// Move on to the next generation, which makes every pixel from the previous frame stale without touching it. Once the generations run out,
+		// reset all of the stamps so that a pixel left untouched for a long time can't appear to be from the current frame.
+		currentGeneration++;
+		if(currentGeneration > 255) {
+			for(int i = 0; i < depthGenerations.length; i++) {
+				depthGenerations[i] = 0;
+			}
+			currentGeneration = 1;
 		}
 	}
 	
+	public boolean isPixelDrawn(int pixelIndex) { return depthGenerations[pixelIndex] == (byte) currentGeneration; }
+	public float getDepth(int pixelIndex) { return isPixelDrawn(pixelIndex) ? zBuffer[pixelIndex] : maxDistance; }
+	
 	public void setPixel(int x, int y, int colour) { setPixel(x, y, 0, colour); }
 	public void setPixel(int x, int y, float z, int colour) {
 		final int pixelIndex = (x + y * width);
 
 		// Check there's nothing already in-front of the pixel before rendering
-		if(zBuffer[pixelIndex] <= z)
+		if(getDepth(pixelIndex) <= z)
+			return;
+		
+		zBuffer[pixelIndex] = z;
+		depthGenerations[pixelIndex] = (byte) currentGeneration;
+		if(indexedPixels != null) indexedPixels[pixelIndex] = (byte) palette.findClosestIndex(colour);
+		else pixels[pixelIndex] = colour;
+	}
+	public void setTexel(int x, int y, float z, Sprite sprite, int textureIndex, int light) {
+		final int pixelIndex = (x + y * width);
+
+		// Check there's nothing already in-front of the pixel before rendering
+		if(getDepth(pixelIndex) <= z)
 			return;
 		
 		zBuffer[pixelIndex] = z;
-		pixels[pixelIndex] = colour;
+		depthGenerations[pixelIndex] = (byte) currentGeneration;
+		if(indexedPixels != null) {
+			// Look up the fogged colour for this distance straight from the colormap
+			indexedPixels[pixelIndex] = palette.colormap[palette.getShadeOffset(z, maxDistance, light) + (sprite.paletteIndices[textureIndex] & 0xff)];
+		} else if(light >= LightMap.FULL_BRIGHT) {
+			pixels[pixelIndex] = sprite.pixels[textureIndex];
+		} else {
+			// Scale the red and blue channels together, and then the green channel, by the light level
+			final int colour = sprite.pixels[textureIndex];
+			final int redBlue = (((colour & 0x00ff00ff) * light) >>> 8) & 0x00ff00ff;
+			final int green = (((colour & 0x0000ff00) * light) >>> 8) & 0x0000ff00;
+			pixels[pixelIndex] = (0xff000000 | redBlue | green);
+		}
+	}
+	
+	public void updateProjection(Camera camera) {
+		if(camera.angle != projectionAngle) {
+			projectionAngle = camera.angle;
+			cameraAngleSin = (float) Math.sin(camera.angle);
+			cameraAngleCos = (float) Math.cos(camera.angle);
+		}
+		
+		if((camera.fieldOfView == projectionFieldOfView) && (camera.minRenderDistance == projectionMinRenderDistance))
+			return;
+		projectionFieldOfView = camera.fieldOfView;
+		projectionMinRenderDistance = camera.minRenderDistance;
+		
+		projectionHalfWidthTan = (float) Math.tan(camera.fieldOfView / 2);
+		for(int screenX = 0; screenX < width; screenX++) {
+			// Calculate the angle of the ray being fired relative to the center of the screen (-FOV/2 to FOV/2). The columns are evenly spaced
+			// across a flat screen rather than evenly spaced by angle, so that straight walls stay straight at any field of view.
+			final float horizontalAngle = (float) Math.atan(((1.0f * screenX - (width / 2)) / (width / 2.0f)) * projectionHalfWidthTan);
+			columnAngleSins[screenX] = (float) Math.sin(horizontalAngle);
+			columnAngleCoses[screenX] = (float) Math.cos(horizontalAngle);
+		}
+		
+		// A wider field of view fits more into the same screen, so everything is drawn smaller
+		final float zoom = (float) (Math.tan(Camera.DEFAULT_FIELD_OF_VIEW / 2) / projectionHalfWidthTan);
+		projectionZoom = zoom;
+		
+		final int halfScreenHeight = (height / 2);
+		for(int screenY = 0; screenY < height; screenY++) {
+			// Calculate the vertical angle between the ray being projected to the floor/ceiling based on how far we are vertically through the column.
+			// We know that: tan(verticalAngle) = relative_screen_y / min_render_distance
+			final float relativeScreenY = (1.0f * screenY - halfScreenHeight) / height;
+			final float verticalAngleTan = (relativeScreenY / camera.minRenderDistance) / zoom;
+			// Calculate the Z distance to the floor/ceiling tile for the current pixel by using the wall height and the vertical angle of the ray.
+			// We know: z_distance = wall_height / tan(verticalAngle)
+			rowFloorDistances[screenY] = (relativeScreenY >= 0) ? (5 / verticalAngleTan) : -(5 / verticalAngleTan);
+		}
+	}
+	
+	public int getColumn(float horizontalAngle) {
+		// Find the column whose ray is at the given angle from the centre of the screen, for the field of view of the tables
+		return (int) Math.ceil(((Math.tan(horizontalAngle) / projectionHalfWidthTan) * (width / 2.0f)) + (width / 2));
 	}
 	
-	public void drawEntity(Level level, Entity entity) {
-		final Camera camera = level.player.camera;
-		final float cameraAngleSin = (float) Math.sin(-camera.angle);
-		final float cameraAngleCos = (float) Math.cos(-camera.angle);
+	public boolean projectEntity(Camera camera, Entity entity) {
+		// Rotate by the negative of the camera's angle: sin(-angle) = -sin(angle), cos(-angle) = cos(angle)
+		updateProjection(camera);
+		final float cameraAngleSin = -this.cameraAngleSin;
+		final float cameraAngleCos = this.cameraAngleCos;
 		
 		// Get the entity position relative to the camera
 		final float entityRelativeX = (float) (camera.x - entity.x);
@@ -47,26 +184,39 @@ public class RenderPane3D extends RenderPane {
 	
 		// Check that the entity is in-front of the camera
 		if(relativeEntityZ < camera.minRenderDistance) 
-			return;
+			return false;
 		
-		// Calculate the position of the entity on the screen
-		final float screenEntityX = (width / 2.0f) - (relativeEntityX / relativeEntityZ) * (width / 2.0f);
-		final float screenEntityY = (height / 2.0f) + (relativeEntityY / relativeEntityZ) * (height / 2.0f);
+		// Calculate the position of the entity on the screen, on the same flat screen as the wall columns, which keeps it in the same place against
+		// the walls as the camera turns
+		final float zoom = projectionZoom;
+		final float screenEntityX = (width / 2.0f) + ((-relativeEntityX / relativeEntityZ) / projectionHalfWidthTan) * (width / 2.0f);
+		final float screenEntityY = (height / 2.0f) + (relativeEntityY / relativeEntityZ) * (height / 2.0f) * zoom;
 		
 		// Calculate the boundaries of the entity drawn on the screen
-		final int pushBackZ = (int) (height / relativeEntityZ * 8 * (entity.sprite.height / 64.0) * entity.scale);
-		final int screenEntityLeft = (int) (screenEntityX - pushBackZ);
-		final int screenEntityRight = (int) (screenEntityX + pushBackZ);
-		final int screenEntityTop = (int) (screenEntityY - pushBackZ);
-		final int screenEntityBottom = (int) ((screenEntityY + pushBackZ));
-		
-		// Iterate through each row of the entity being drawn
-		for(int screenY = Math.max(0, screenEntityTop); screenY < Math.min(height, screenEntityBottom); screenY++) {
+		final int pushBackZ = (int) (height / relativeEntityZ * 8 * (entity.sprite.height / 64.0) * entity.scale * zoom);
+		projectedLeft = (int) (screenEntityX - pushBackZ);
+		projectedRight = (int) (screenEntityX + pushBackZ);
+		projectedTop = (int) (screenEntityY - pushBackZ);
+		projectedBottom = (int) ((screenEntityY + pushBackZ));
+		projectedDepth = relativeEntityZ;
+		return true;
+	}
+	
+	public void drawEntity(Camera camera, Entity entity, int light) {
+		if(!projectEntity(camera, entity))
+			return;
+		drawProjectedEntity(entity, light, projectedLeft, projectedTop, projectedRight, projectedBottom, projectedDepth, clipLeft, clipTop, clipRight, clipBottom);
+	}
+	
+	public void drawProjectedEntity(Entity entity, int light, int screenEntityLeft, int screenEntityTop, int screenEntityRight, int screenEntityBottom, float relativeEntityZ, int areaLeft, int areaTop, int areaRight, int areaBottom) {
+		// Only the given area is drawn to (rather than the clip area), and no other state is touched, so different threads can draw into separate
+		// areas of the pane at the same time. Iterate through each row of the entity being drawn that falls inside the area.
+		for(int screenY = Math.max(areaTop, screenEntityTop); screenY < Math.min(areaBottom, screenEntityBottom); screenY++) {
 			final float relativePositionInHeight = (screenY - screenEntityTop) / (1.0f * (screenEntityBottom - screenEntityTop));
 			final int textureRow = (int) (relativePositionInHeight * entity.sprite.height);
 			
 			// Iterate through each column of the entity being drawn
-			for(int screenX = Math.max(0, screenEntityLeft); screenX < Math.min(width, screenEntityRight); screenX++) {
+			for(int screenX = Math.max(areaLeft, screenEntityLeft); screenX < Math.min(areaRight, screenEntityRight); screenX++) {
 				final float relativePositionInWidth = (screenX - screenEntityLeft) / (1.0f * (screenEntityRight - screenEntityLeft));
 				final int textureColumn = (int) (relativePositionInWidth * entity.sprite.width);
 				
@@ -75,38 +225,105 @@ public class RenderPane3D extends RenderPane {
 				
 				// Render the sprite, excluding the transparency colours
 				if((colour != 0xff7f007f) && (colour != 0xffff00ff)) 
-					setPixel(screenX, screenY, relativeEntityZ, colour);
+					setTexel(screenX, screenY, relativeEntityZ, entity.sprite, textureIndex, light);
 			}
 		}
 	}
 	
 	public void applyFog(float maxDistance, int fogColour, float fogStrength) {
+		applyFog(maxDistance, fogColour, fogStrength, clipLeft, clipTop, clipRight, clipBottom);
+	}
+	
+	public void applyFog(float maxDistance, int fogColour, float fogStrength, int areaLeft, int areaTop, int areaRight, int areaBottom) {
+		// Indexed frames have the fog applied as each pixel is drawn, so only the pixels that weren't drawn this frame need to be filled with fog
+		if(indexedPixels != null) {
+			for(int y = areaTop; y < areaBottom; y++) {
+				for(int i = (y * width) + areaLeft; i < (y * width) + areaRight; i++) {
+					if(!isPixelDrawn(i)) indexedPixels[i] = palette.fogIndex;
+				}
+			}
+			return;
+		}
+		
 		final int fogRed = (fogColour & 0x00ff0000) >> 16;
 		final int fogGreen = (fogColour & 0x0000ff00) >> 8;
 		final int fogBlue = (fogColour & 0x000000ff);
 		
-		for(int i = 0; i < pixels.length; i++) {
-			final float z = zBuffer[i];
+		for(int y = areaTop; y < areaBottom; y++) {
+			for(int i = (y * width) + areaLeft; i < (y * width) + areaRight; i++) {
+				final float z = getDepth(i);
 
-			if(z >= maxDistance) {
-				pixels[i] = fogColour;
-			} else {
-				final int sourceColour = pixels[i];
-				
-				final int sourceRed = (sourceColour & 0x00ff0000) >> 16;
-				final int sourceGreen = (sourceColour & 0x0000ff00) >> 8;
-				final int sourceBlue = (sourceColour & 0x000000ff);
+				if(z >= maxDistance) {
+					pixels[i] = fogColour;
+				} else {
+					final int sourceColour = pixels[i];
+					
+					final int sourceRed = (sourceColour & 0x00ff0000) >> 16;
+					final int sourceGreen = (sourceColour & 0x0000ff00) >> 8;
+					final int sourceBlue = (sourceColour & 0x000000ff);
 
-				final float fogAlpha = ((maxDistance - z) / maxDistance) * fogStrength;
-				
-				final int resultRed = (int) ((sourceRed * fogAlpha) + (fogRed * (1.0f - fogAlpha)));
-				final int resultGreen = (int) ((sourceGreen * fogAlpha) + (fogGreen * (1.0f - fogAlpha)));
-				final int resultBlue = (int) ((sourceBlue * fogAlpha) + (fogBlue * (1.0f - fogAlpha)));
-				final int resultArgb = ((255 << 24) | (resultRed << 16) | (resultGreen << 8) | resultBlue);
-				
-				pixels[i] = resultArgb;
+					final float fogAlpha = ((maxDistance - z) / maxDistance) * fogStrength;
+					
+					final int resultRed = (int) ((sourceRed * fogAlpha) + (fogRed * (1.0f - fogAlpha)));
+					final int resultGreen = (int) ((sourceGreen * fogAlpha) + (fogGreen * (1.0f - fogAlpha)));
+					final int resultBlue = (int) ((sourceBlue * fogAlpha) + (fogBlue * (1.0f - fogAlpha)));
+					final int resultArgb = ((255 << 24) | (resultRed << 16) | (resultGreen << 8) | resultBlue);
+					
+					pixels[i] = resultArgb;
+				}
 			}
 		}
 	}
 	
+	public void enableWorldLayerSaving() {
+		// Set aside the buffers for the saved world layer up-front, so that saving it during the game never allocates
+		if(savedDepths != null)
+			return;
+		savedDepths = new float[width * height];
+		if(indexedPixels != null) savedIndexedPixels = new byte[width * height];
+		else savedPixels = new int[width * height];
+	}
+	
+	public void saveWorldLayer() {
+		// Keep a copy of the frame (and its depth) before any entities or fog are drawn, so that entities can be redrawn over it later without
+		// drawing the walls, floor and ceiling again. Pixels that haven't been drawn are saved with a negative depth.
+		for(int i = 0; i < savedDepths.length; i++) {
+			savedDepths[i] = isPixelDrawn(i) ? zBuffer[i] : -1;
+		}
+		if(indexedPixels != null) System.arraycopy(indexedPixels, 0, savedIndexedPixels, 0, indexedPixels.length);
+		else System.arraycopy(pixels, 0, savedPixels, 0, pixels.length);
+	}
+	
+	public void restoreWorldLayer() {
+		// Put back the saved world layer inside the clip area, leaving the rest of the frame untouched
+		final byte staleGeneration = (byte) (currentGeneration - 1);
+		for(int y = clipTop; y < clipBottom; y++) {
+			final int rowStart = (y * width) + clipLeft;
+			final int rowLength = (clipRight - clipLeft);
+			if(indexedPixels != null) System.arraycopy(savedIndexedPixels, rowStart, indexedPixels, rowStart, rowLength);
+			else System.arraycopy(savedPixels, rowStart, pixels, rowStart, rowLength);
+			
+			for(int i = rowStart; i < rowStart + rowLength; i++) {
+				if(savedDepths[i] < 0) {
+					depthGenerations[i] = staleGeneration;
+				} else {
+					zBuffer[i] = savedDepths[i];
+					depthGenerations[i] = (byte) currentGeneration;
+				}
+			}
+		}
+	}
+	
+	public void setClip(int left, int top, int right, int bottom) {
+		clipLeft = Math.max(0, left);
+		clipTop = Math.max(0, top);
+		clipRight = Math.min(width, right);
+		clipBottom = Math.min(height, bottom);
+	}
+	
+	public void resetClip() { setClip(0, 0, width, height); }
+	
+	@Override
+	public BufferedImage getBufferedImage() { return (indexedImage != null) ? indexedImage : bufferedImage; }
+	
 }
@@ -10,6 +10,8 @@ public class Sprite {
 
 	public final int[] pixels;
 	public final int width, height;
+	// The palette index of each pixel, only filled in once a Palette has been built for indexed rendering
+	public byte[] paletteIndices = null;
 	
 	public Sprite(String path) {
 		int[] pixelResults = null;
@@ -0,0 +1,185 @@
+package graphics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import utils.Level;
+
+public class TiledRenderer {
+
+	// A tile of colours, depths and depth stamps is 32 * 32 * 9 bytes, which fits comfortably in a core's L1 cache
+	public static final int TILE_SIZE = 32;
+
+	private final int fogColour;
+	private final float fogStrength;
+
+	// The thread calling render() works on tiles too, alongside a worker thread for each other core. Every frame the threads meet at the barrier
+	// twice: once to start on the tiles, and once when every tile is finished. Tiles are handed out one at a time from a shared counter, so a
+	// thread that gets cheap tiles just takes more of them.
+	private final FrameBarrier frameBarrier;
+	public final Thread[] workerThreads;
+	private final AtomicInteger nextTileIndex = new AtomicInteger();
+	private volatile boolean isRunning = true;
+
+	// The pane and the area of it being drawn this frame, along with the tiles that area covers
+	private RenderPane3D renderPane = null;
+	private float maxDistance;
+	private int areaLeft, areaTop, areaRight, areaBottom;
+	private int firstTileX, firstTileY, areaTileColumns, areaTileCount;
+
+	// Every entity on screen is projected once, and each tile keeps the indices of the entities that overlap it (in the order they are in the
+	// level, so that entities at the same depth cover each other exactly as they do when drawn one after another)
+	private int entityCount = 0;
+	private Entity[] entities = new Entity[64];
+	private int[] entityBounds = new int[64 * 4];
+	private float[] entityDepths = new float[64];
+	private int[] entityLights = new int[64];
+	private int tileColumns = 0;
+	private final int[][] tileEntityIndices;
+	private final int[] tileEntityCounts;
+
+	public TiledRenderer(int threadCount, int maxWidth, int maxHeight, int fogColour, float fogStrength) {
+		if(threadCount < 1)
+			throw new IllegalArgumentException("Tiled rendering needs at least one thread, not " + threadCount);
+
+		this.fogColour = fogColour;
+		this.fogStrength = fogStrength;
+
+		// The tiles are set aside for the largest render pane that will be drawn, so a smaller pane just uses fewer of them and changing
+		// resolution never allocates
+		final int maxTileCount = ((maxWidth + TILE_SIZE - 1) / TILE_SIZE) * ((maxHeight + TILE_SIZE - 1) / TILE_SIZE);
+		tileEntityIndices = new int[maxTileCount][];
+		tileEntityCounts = new int[maxTileCount];
+		for(int i = 0; i < maxTileCount; i++) {
+			tileEntityIndices[i] = new int[8];
+		}
+
+		frameBarrier = new FrameBarrier(threadCount);
+		workerThreads = new Thread[threadCount - 1];
+		for(int i = 0; i < workerThreads.length; i++) {
+			final int threadIndex = i + 1;
+			workerThreads[i] = new Thread(() -> {
+				while(true) {
+					frameBarrier.arriveAndAwait(threadIndex);
+					if(!isRunning)
+						break;
+					drawTiles();
+					frameBarrier.arriveAndAwait(threadIndex);
+				}
+			}, "Tile Renderer " + threadIndex);
+			workerThreads[i].setDaemon(true);
+			workerThreads[i].start();
+		}
+	}
+
+	public void render(Level level, Camera camera, RenderPane3D renderPane, int left, int top, int right, int bottom) {
+		// Draw the entities and fog over the walls, floor and ceiling already in the render pane, but only inside the given area
+		this.renderPane = renderPane;
+		maxDistance = camera.maxRenderDistance;
+		areaLeft = Math.max(0, left);
+		areaTop = Math.max(0, top);
+		areaRight = Math.min(renderPane.width, right);
+		areaBottom = Math.min(renderPane.height, bottom);
+		if((areaLeft >= areaRight) || (areaTop >= areaBottom))
+			return;
+
+		tileColumns = (renderPane.width + TILE_SIZE - 1) / TILE_SIZE;
+		firstTileX = areaLeft / TILE_SIZE;
+		firstTileY = areaTop / TILE_SIZE;
+		areaTileColumns = ((areaRight - 1) / TILE_SIZE) - firstTileX + 1;
+		areaTileCount = areaTileColumns * (((areaBottom - 1) / TILE_SIZE) - firstTileY + 1);
+		binEntities(level, camera, renderPane);
+
+		// Anything written before arriving at the barrier (the binned entities and the area) is visible to the worker threads once they are released
+		nextTileIndex.set(0);
+		frameBarrier.arriveAndAwait(0);
+		drawTiles();
+		frameBarrier.arriveAndAwait(0);
+	}
+
+	public void close() {
+		if(!isRunning)
+			return;
+
+		// Release the workers from waiting for the next frame, which they will see is never coming
+		isRunning = false;
+		frameBarrier.arrive();
+		for(Thread workerThread : workerThreads) {
+			try {
+				workerThread.join();
+			} catch (InterruptedException e) {
+				System.err.println("Failed to wait for tile renderer to close - " + e.getMessage());
+			}
+		}
+	}
+
+	private void binEntities(Level level, Camera camera, RenderPane3D renderPane) {
+		for(int tileY = firstTileY; tileY < firstTileY + (areaTileCount / areaTileColumns); tileY++) {
+			for(int tileX = firstTileX; tileX < firstTileX + areaTileColumns; tileX++) {
+				tileEntityCounts[tileX + tileY * tileColumns] = 0;
+			}
+		}
+
+		entityCount = 0;
+		for(int i = 0; i < level.entities.size(); i++) {
+			final Entity entity = level.entities.get(i);
+			// Skip any entities that are hidden behind walls from the camera's current tile, or are behind the camera
+			if(!level.isPotentiallyVisible(camera.x, camera.z, entity.x, entity.z)) continue;
+			if(!renderPane.projectEntity(camera, entity)) continue;
+
+			// Only the tiles inside the area that the entity overlaps need to know about it
+			final int overlapLeft = Math.max(areaLeft, renderPane.projectedLeft);
+			final int overlapTop = Math.max(areaTop, renderPane.projectedTop);
+			final int overlapRight = Math.min(areaRight, renderPane.projectedRight);
+			final int overlapBottom = Math.min(areaBottom, renderPane.projectedBottom);
+			if((overlapLeft >= overlapRight) || (overlapTop >= overlapBottom)) continue;
+
+			if(entityCount == entities.length) {
+				entities = Arrays.copyOf(entities, entityCount * 2);
+				entityBounds = Arrays.copyOf(entityBounds, entityCount * 2 * 4);
+				entityDepths = Arrays.copyOf(entityDepths, entityCount * 2);
+				entityLights = Arrays.copyOf(entityLights, entityCount * 2);
+			}
+			entities[entityCount] = entity;
+			entityBounds[entityCount * 4] = renderPane.projectedLeft;
+			entityBounds[entityCount * 4 + 1] = renderPane.projectedTop;
+			entityBounds[entityCount * 4 + 2] = renderPane.projectedRight;
+			entityBounds[entityCount * 4 + 3] = renderPane.projectedBottom;
+			entityDepths[entityCount] = renderPane.projectedDepth;
+			entityLights[entityCount] = level.getLight(entity.x, entity.z);
+
+			for(int tileY = overlapTop / TILE_SIZE; tileY <= (overlapBottom - 1) / TILE_SIZE; tileY++) {
+				for(int tileX = overlapLeft / TILE_SIZE; tileX <= (overlapRight - 1) / TILE_SIZE; tileX++) {
+					final int tileIndex = tileX + tileY * tileColumns;
+					if(tileEntityCounts[tileIndex] == tileEntityIndices[tileIndex].length)
+						tileEntityIndices[tileIndex] = Arrays.copyOf(tileEntityIndices[tileIndex], tileEntityCounts[tileIndex] * 2);
+					tileEntityIndices[tileIndex][tileEntityCounts[tileIndex]++] = entityCount;
+				}
+			}
+			entityCount++;
+		}
+	}
+
+	private void drawTiles() {
+		// Draw the entities and then the fog for one tile at a time, so that the fog is applied while the tile is still in the cache
+		int areaTileIndex;
+		while((areaTileIndex = nextTileIndex.getAndIncrement()) < areaTileCount) {
+			final int tileX = firstTileX + (areaTileIndex % areaTileColumns);
+			final int tileY = firstTileY + (areaTileIndex / areaTileColumns);
+			final int tileLeft = Math.max(areaLeft, tileX * TILE_SIZE);
+			final int tileTop = Math.max(areaTop, tileY * TILE_SIZE);
+			final int tileRight = Math.min(areaRight, (tileX + 1) * TILE_SIZE);
+			final int tileBottom = Math.min(areaBottom, (tileY + 1) * TILE_SIZE);
+
+			final int tileIndex = tileX + tileY * tileColumns;
+			final int[] entityIndices = tileEntityIndices[tileIndex];
+			for(int i = 0; i < tileEntityCounts[tileIndex]; i++) {
+				final int entityIndex = entityIndices[i];
+				renderPane.drawProjectedEntity(entities[entityIndex], entityLights[entityIndex], entityBounds[entityIndex * 4], entityBounds[entityIndex * 4 + 1], entityBounds[entityIndex * 4 + 2],
+						entityBounds[entityIndex * 4 + 3], entityDepths[entityIndex], tileLeft, tileTop, tileRight, tileBottom);
+			}
+			renderPane.applyFog(maxDistance, fogColour, fogStrength, tileLeft, tileTop, tileRight, tileBottom);
+		}
+	}
+
+}
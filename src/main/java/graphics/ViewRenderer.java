@@ -0,0 +1,81 @@
+package graphics;
+
+
+import utils.Level;
+
+public class ViewRenderer {
+
+	public final RenderPane3D[] renderPanes;
+	public final Camera[] cameras;
+	
+	private final int fogColour;
+	private final float fogStrength;
+	
+	// The thread calling render() draws the first view itself, and each other view has its own worker thread. Every frame the threads meet at
+	// the barrier twice: once to start drawing, and once when every view has been drawn.
+	private final FrameBarrier frameBarrier;
+	public final Thread[] workerThreads;
+	private Level currentLevel = null;
+	private volatile boolean isRunning = true;
+	
+	public ViewRenderer(RenderPane3D[] renderPanes, Camera[] cameras, int fogColour, float fogStrength) {
+		if(renderPanes.length != cameras.length)
+			throw new IllegalArgumentException("Each view needs both a render pane and a camera");
+		
+		this.renderPanes = renderPanes;
+		this.cameras = cameras;
+		this.fogColour = fogColour;
+		this.fogStrength = fogStrength;
+		
+		frameBarrier = new FrameBarrier(renderPanes.length);
+		workerThreads = new Thread[renderPanes.length - 1];
+		for(int i = 0; i < workerThreads.length; i++) {
+			final int viewIndex = i + 1;
+			workerThreads[i] = new Thread(() -> {
+				while(true) {
+					frameBarrier.arriveAndAwait(viewIndex);
+					if(!isRunning)
+						break;
+					renderView(viewIndex);
+					frameBarrier.arriveAndAwait(viewIndex);
+				}
+			}, "View Renderer " + viewIndex);
+			workerThreads[i].setDaemon(true);
+			workerThreads[i].start();
+		}
+	}
+	
+	public void render(Level level) {
+		// The level is only read while drawing, so every view can share it. Anything written before arriving at the barrier (such as the camera
+		// positions) is visible to the worker threads once they are released.
+		currentLevel = level;
+		frameBarrier.arriveAndAwait(0);
+		renderView(0);
+		frameBarrier.arriveAndAwait(0);
+	}
+	
+	public void close() {
+		if(!isRunning)
+			return;
+		
+		// Release the workers from waiting for the next frame, which they will see is never coming
+		isRunning = false;
+		frameBarrier.arrive();
+		for(Thread workerThread : workerThreads) {
+			try {
+				workerThread.join();
+			} catch (InterruptedException e) {
+				System.err.println("Failed to wait for view renderer to close - " + e.getMessage());
+			}
+		}
+	}
+	
+	private void renderView(int viewIndex) {
+		final RenderPane3D renderPane = renderPanes[viewIndex];
+		final Camera camera = cameras[viewIndex];
+		renderPane.clear(camera.maxRenderDistance);
+		currentLevel.drawLevel(renderPane, camera);
+		renderPane.applyFog(camera.maxRenderDistance, fogColour, fogStrength);
+	}
+	
+}
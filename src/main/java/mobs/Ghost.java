@@ -2,6 +2,7 @@ package mobs;
 
 import graphics.Art;
 import ui.InputHandler;
+import utils.DynamicLight;
 import utils.Level;
 
 public class Ghost extends Mob {
@@ -10,12 +11,14 @@ public class Ghost extends Mob {
 	
 	public Ghost(Level level, float x, float y, float z) {
 		super(level, Art.MOB_GHOST, x, y, z, 2.0f);
+		// Ghosts glow, lighting up the tiles around them as they move
+		light = new DynamicLight(3, 128);
 	}
 	
 	@Override
 	public void update(InputHandler inputHandler, float delta) {
 		// Add ghost bobbing up and down
-		y = (float) Math.sin(Math.toRadians(System.currentTimeMillis() / 4 + rand)) * 2;
+		y = (float) Math.sin(Math.toRadians((level.elapsedTime * 1000) / 4 + rand)) * 2;
 		
 		float xDiff = level.player.camera.x - x;
 		float zDiff = level.player.camera.z - z;
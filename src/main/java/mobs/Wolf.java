@@ -13,7 +13,7 @@ public class Wolf extends Mob {
 	@Override
 	public void update(InputHandler inputHandler, float delta) {
 		// Switch between the two sprite options every second
-		sprite = System.currentTimeMillis() % 2000 > 1000 ? Art.MOB_WOLF_1 : Art.MOB_WOLF_2;
+		sprite = ((long) (level.elapsedTime * 1000)) % 2000 > 1000 ? Art.MOB_WOLF_1 : Art.MOB_WOLF_2;
 		
 		float xDiff = level.player.camera.x - x;
 		float zDiff = level.player.camera.z - z;
@@ -0,0 +1,131 @@
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import ui.InputHandler;
+import utils.Level;
+
+public class GameClient {
+
+	private final DatagramChannel channel;
+	private final PacketBufferPool bufferPool = new PacketBufferPool(2, NetworkProtocol.MAX_PACKET_SIZE);
+	private final ByteBuffer receiveBuffer;
+	private final ByteBuffer sendBuffer;
+	
+	// Received snapshots are kept for as long as the server may still use them as a baseline
+	private final Snapshot[] history = new Snapshot[GameServer.HISTORY_SIZE];
+	private final Snapshot decodedSnapshot = new Snapshot();
+	private int latestTick = -1;
+	// Snapshots too large for one packet arrive in parts, which are read into the decoded snapshot as they arrive. Only once every part of a
+	// snapshot has arrived is it stored (and acknowledged), and a lost part just means that snapshot is skipped.
+	private int decodingTick = -1, decodingBaselineTick = -1;
+	private int decodedPartCount = 0, lastPartIndex = -1;
+	private boolean[] decodedParts = new boolean[16];
+	private long bytesReceived = 0;
+	
+	public GameClient(String host, int port) throws IOException {
+		for(int i = 0; i < history.length; i++) {
+			history[i] = new Snapshot();
+		}
+		
+		// The client is polled from the game loop, so it never waits on the socket
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.connect(new InetSocketAddress(host, port));
+		receiveBuffer = bufferPool.acquire();
+		sendBuffer = bufferPool.acquire();
+	}
+	
+	public int getLatestTick() { return latestTick; }
+	public long getBytesReceived() { return bytesReceived; }
+	public Snapshot getLatestSnapshot() { return (latestTick >= 0) ? history[latestTick % history.length] : null; }
+	
+	public void sendInput(InputHandler input) throws IOException {
+		// Send the state of each key the game uses, along with the latest snapshot we have (which the server will encode the next one against)
+		int inputBits = 0;
+		for(int i = 0; i < NetworkProtocol.INPUT_KEYS.length; i++) {
+			if(input.isKeyDown(NetworkProtocol.INPUT_KEYS[i])) inputBits |= (1 << i);
+		}
+		
+		sendBuffer.clear();
+		sendBuffer.put(NetworkProtocol.PACKET_INPUT);
+		sendBuffer.putInt(latestTick);
+		sendBuffer.putShort((short) inputBits);
+		sendBuffer.flip();
+		channel.write(sendBuffer);
+	}
+	
+	public boolean receive() throws IOException {
+		boolean hasNewSnapshot = false;
+		while(true) {
+			receiveBuffer.clear();
+			final int packetSize = channel.read(receiveBuffer);
+			if(packetSize <= 0)
+				break;
+			bytesReceived += packetSize;
+			receiveBuffer.flip();
+			if(receiveBuffer.get() != NetworkProtocol.PACKET_SNAPSHOT)
+				continue;
+			
+			// Ignore anything older than what we already have (or are already decoding), and anything encoded against a snapshot we no longer have
+			final int tick = receiveBuffer.getInt();
+			final int baselineTick = receiveBuffer.getInt();
+			final int partIndex = receiveBuffer.getShort() & 0xffff;
+			final boolean isLastPart = (receiveBuffer.get() != 0);
+			if((tick <= latestTick) || (tick < decodingTick))
+				continue;
+			if(tick > decodingTick) {
+				final Snapshot baseline = (baselineTick >= 0) ? history[baselineTick % history.length] : null;
+				if((baseline != null) && (baseline.tick != baselineTick))
+					continue;
+				
+				// The baseline could share the slot the new snapshot is stored in, so decode it separately first
+				decodingTick = tick;
+				decodingBaselineTick = baselineTick;
+				decodedSnapshot.tick = tick;
+				decodedSnapshot.copyFrom(baseline);
+				Arrays.fill(decodedParts, false);
+				decodedPartCount = 0;
+				lastPartIndex = -1;
+			} else if(baselineTick != decodingBaselineTick) {
+				continue;
+			}
+			
+			// Packets can arrive more than once, so only read each part the first time
+			if(partIndex >= decodedParts.length) decodedParts = Arrays.copyOf(decodedParts, Math.max(partIndex + 1, decodedParts.length * 2));
+			if(decodedParts[partIndex])
+				continue;
+			decodedParts[partIndex] = true;
+			decodedPartCount++;
+			if(isLastPart) lastPartIndex = partIndex;
+			decodedSnapshot.readPart(receiveBuffer, partIndex);
+			if((lastPartIndex < 0) || (decodedPartCount != (lastPartIndex + 1)))
+				continue;
+			
+			final Snapshot storedSnapshot = history[tick % history.length];
+			storedSnapshot.copyFrom(decodedSnapshot);
+			storedSnapshot.tick = tick;
+			latestTick = tick;
+			hasNewSnapshot = true;
+		}
+		return hasNewSnapshot;
+	}
+	
+	public void applyTo(Level level) {
+		final Snapshot latestSnapshot = getLatestSnapshot();
+		if(latestSnapshot != null) latestSnapshot.applyTo(level);
+	}
+	
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close connection to server - " + e.getMessage());
+		}
+	}
+	
+}
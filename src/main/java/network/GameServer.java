@@ -0,0 +1,243 @@
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ui.InputHandler;
+import utils.Level;
+
+public class GameServer {
+
+	// How many past snapshots are kept to encode deltas against. Clients that haven't acknowledged anything this recent get a full snapshot.
+	public static final int HISTORY_SIZE = 64;
+	private static final long CLIENT_TIMEOUT_NANOSECONDS = 5000000000L;
+	
+	private static class ClientConnection {
+		final SocketAddress address;
+		final boolean isController;
+		int lastAcknowledgedTick = -1;
+		int lastInputBits = 0;
+		long lastHeardTime = 0;
+		
+		ClientConnection(SocketAddress address, boolean isController) {
+			this.address = address;
+			this.isController = isController;
+		}
+	}
+	
+	// The parts of a snapshot encoded against one baseline, which every client that acknowledged that baseline is sent
+	private static class EncodedSnapshot {
+		int encodedTick = -1;
+		int partCount = 0;
+		ByteBuffer[] parts = new ByteBuffer[4];
+	}
+	
+	public final Level level;
+	public final int tickRate;
+	
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final PacketBufferPool bufferPool = new PacketBufferPool(4, NetworkProtocol.MAX_PACKET_SIZE);
+	private final ByteBuffer receiveBuffer;
+	
+	private final HashMap<SocketAddress, ClientConnection> clients = new HashMap<SocketAddress, ClientConnection>();
+	private final ArrayList<ClientConnection> clientList = new ArrayList<ClientConnection>();
+	private final InputHandler controllerInput = new InputHandler();
+	
+	private final Snapshot[] history = new Snapshot[HISTORY_SIZE];
+	private int currentTick = -1;
+	private volatile boolean isRunning = false;
+	
+	// Clients that acknowledged the same snapshot get exactly the same packets, so each tick only encodes once per distinct baseline. Baselines are
+	// always in the history, so there is a slot for each place in the history, plus a last slot for full snapshots.
+	private final EncodedSnapshot[] encodedSnapshots = new EncodedSnapshot[HISTORY_SIZE + 1];
+	
+	private long statisticsTicks = 0, statisticsTickNanoseconds = 0, statisticsBytesSent = 0, statisticsPacketsSent = 0;
+	
+	public GameServer(Level level, int port, int tickRate) throws IOException {
+		this.level = level;
+		this.tickRate = tickRate;
+		for(int i = 0; i < HISTORY_SIZE; i++) {
+			history[i] = new Snapshot();
+		}
+		for(int i = 0; i < encodedSnapshots.length; i++) {
+			encodedSnapshots[i] = new EncodedSnapshot();
+		}
+		
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(new InetSocketAddress(port));
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		receiveBuffer = bufferPool.acquire();
+	}
+	
+	public int getPort() throws IOException { return ((InetSocketAddress) channel.getLocalAddress()).getPort(); }
+	public synchronized Snapshot getLatestSnapshot() { return (currentTick >= 0) ? history[currentTick % HISTORY_SIZE] : null; }
+	
+	public void run() {
+		isRunning = true;
+		final long tickPeriodNanoseconds = 1000000000L / tickRate;
+		long nextTickTime = System.nanoTime();
+		long lastStatisticsTime = nextTickTime;
+		
+		try {
+			while(isRunning) {
+				// Sleep in the selector until either a packet arrives or the next tick is due
+				final long nanosecondsUntilTick = nextTickTime - System.nanoTime();
+				if(nanosecondsUntilTick > 1000000) selector.select(nanosecondsUntilTick / 1000000);
+				else selector.selectNow();
+				selector.selectedKeys().clear();
+				receivePackets();
+				
+				final long currentTime = System.nanoTime();
+				if(currentTime >= nextTickTime) {
+					tick(1.0f / tickRate);
+					nextTickTime += tickPeriodNanoseconds;
+					// If the server has fallen far behind, skip the missed ticks rather than running them all at once
+					if((currentTime - nextTickTime) > (tickPeriodNanoseconds * 10)) nextTickTime = currentTime;
+				}
+				
+				if((currentTime - lastStatisticsTime) >= 1000000000L) {
+					printStatistics();
+					lastStatisticsTime = currentTime;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Game server failed - " + e.getMessage());
+		}
+		
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close game server - " + e.getMessage());
+		}
+	}
+	
+	public void stop() {
+		isRunning = false;
+		selector.wakeup();
+	}
+	
+	private void receivePackets() throws IOException {
+		while(true) {
+			receiveBuffer.clear();
+			final SocketAddress address = channel.receive(receiveBuffer);
+			if(address == null)
+				break;
+			receiveBuffer.flip();
+			if((receiveBuffer.remaining() < 7) || (receiveBuffer.get() != NetworkProtocol.PACKET_INPUT))
+				continue;
+			
+			// The first client to connect controls the player, and any others watch
+			ClientConnection client = clients.get(address);
+			if(client == null) {
+				client = new ClientConnection(address, clients.isEmpty());
+				clients.put(address, client);
+				clientList.add(client);
+				System.out.println("Client connected from " + address + (client.isController ? " (controlling the player)" : " (spectating)"));
+			}
+			client.lastHeardTime = System.nanoTime();
+			
+			// Packets can arrive out of order, so only ever move the acknowledgement forwards
+			final int acknowledgedTick = receiveBuffer.getInt();
+			final int inputBits = receiveBuffer.getShort() & 0xffff;
+			if(acknowledgedTick > client.lastAcknowledgedTick) client.lastAcknowledgedTick = acknowledgedTick;
+			if(client.isController) applyInput(client, inputBits);
+		}
+	}
+	
+	private void applyInput(ClientConnection client, int inputBits) {
+		final int changedBits = (inputBits ^ client.lastInputBits);
+		for(int i = 0; i < NetworkProtocol.INPUT_KEYS.length; i++) {
+			if((changedBits & (1 << i)) != 0) controllerInput.applyKeyEvent(NetworkProtocol.INPUT_KEYS[i], (inputBits & (1 << i)) != 0);
+		}
+		client.lastInputBits = inputBits;
+	}
+	
+	private void tick(float delta) throws IOException {
+		final long tickStartTime = System.nanoTime();
+		
+		// The server is the only place the level is actually updated. Clients just show the snapshots they are sent.
+		level.update(controllerInput, delta);
+		controllerInput.beginTick();
+		synchronized(this) {
+			currentTick++;
+			history[currentTick % HISTORY_SIZE].capture(level, currentTick);
+		}
+		final Snapshot snapshot = history[currentTick % HISTORY_SIZE];
+		
+		for(int i = clientList.size() - 1; i >= 0; i--) {
+			final ClientConnection client = clientList.get(i);
+			if((tickStartTime - client.lastHeardTime) > CLIENT_TIMEOUT_NANOSECONDS) {
+				System.out.println("Client " + client.address + " timed out");
+				clients.remove(client.address);
+				clientList.remove(i);
+				continue;
+			}
+			
+			// Encode against the latest snapshot the client has confirmed it has, as long as it is still in the history
+			final int baselineTick = client.lastAcknowledgedTick;
+			final boolean hasBaseline = (baselineTick >= 0) && ((currentTick - baselineTick) < HISTORY_SIZE) && (history[baselineTick % HISTORY_SIZE].tick == baselineTick);
+			final EncodedSnapshot encoded = encodedSnapshots[hasBaseline ? (baselineTick % HISTORY_SIZE) : HISTORY_SIZE];
+			if(encoded.encodedTick != currentTick) encodeSnapshot(encoded, snapshot, hasBaseline ? history[baselineTick % HISTORY_SIZE] : null);
+			
+			// If the socket buffer is full a packet is dropped, which the client recovers from with the next snapshot
+			for(int part = 0; part < encoded.partCount; part++) {
+				final ByteBuffer packet = encoded.parts[part];
+				packet.rewind();
+				statisticsBytesSent += channel.send(packet, client.address);
+			}
+			statisticsPacketsSent++;
+		}
+		
+		for(EncodedSnapshot encoded : encodedSnapshots) {
+			if(encoded.encodedTick != currentTick)
+				continue;
+			for(int part = 0; part < encoded.partCount; part++) {
+				bufferPool.release(encoded.parts[part]);
+				encoded.parts[part] = null;
+			}
+			encoded.partCount = 0;
+		}
+		
+		statisticsTicks++;
+		statisticsTickNanoseconds += (System.nanoTime() - tickStartTime);
+	}
+	
+	private void encodeSnapshot(EncodedSnapshot encoded, Snapshot snapshot, Snapshot baseline) {
+		// Keep starting new packets until every entity has been written, so that however many mobs there are, no packet is larger than the pool's
+		// buffers (and so none has to be split up on the network)
+		encoded.encodedTick = currentTick;
+		encoded.partCount = 0;
+		int nextEntity = 0;
+		do {
+			final ByteBuffer packet = bufferPool.acquire();
+			packet.put(NetworkProtocol.PACKET_SNAPSHOT);
+			nextEntity = snapshot.write(packet, baseline, encoded.partCount, nextEntity);
+			packet.flip();
+			if(encoded.partCount == encoded.parts.length) encoded.parts = Arrays.copyOf(encoded.parts, encoded.parts.length * 2);
+			encoded.parts[encoded.partCount++] = packet;
+		} while(nextEntity < snapshot.entityCount);
+	}
+	
+	private void printStatistics() {
+		if(statisticsTicks == 0)
+			return;
+		
+		final long averageTickMicroseconds = (statisticsTickNanoseconds / statisticsTicks) / 1000;
+		final long averagePacketBytes = (statisticsPacketsSent > 0) ? (statisticsBytesSent / statisticsPacketsSent) : 0;
+		System.out.println("Server tick " + currentTick + ": " + clientList.size() + " clients, " + level.entities.size() + " entities, " + averageTickMicroseconds + "us per tick, " + averagePacketBytes + " bytes per snapshot");
+		statisticsTicks = statisticsTickNanoseconds = statisticsBytesSent = statisticsPacketsSent = 0;
+	}
+	
+}
@@ -0,0 +1,40 @@
+package network;
+
+import java.awt.event.KeyEvent;
+import java.nio.ByteBuffer;
+
+public class NetworkProtocol {
+
+	public static final byte PACKET_INPUT = 1;
+	public static final byte PACKET_SNAPSHOT = 2;
+	
+	// Small enough that a packet is never split into fragments on the way (which would lose the whole packet if any one fragment was lost).
+	// Snapshots that don't fit are sent as several packets.
+	public static final int MAX_PACKET_SIZE = 1200;
+	
+	// The only keys the game reacts to, which are sent from the client to the server as one bit each
+	public static final int[] INPUT_KEYS = { KeyEvent.VK_W, KeyEvent.VK_A, KeyEvent.VK_S, KeyEvent.VK_D, KeyEvent.VK_LEFT, KeyEvent.VK_RIGHT, KeyEvent.VK_SHIFT, KeyEvent.VK_X };
+	
+	public static void writeVarInt(ByteBuffer buffer, int value) {
+		// Zig-zag encode the value so that small negative numbers are small too, then write it seven bits at a time
+		int encodedValue = (value << 1) ^ (value >> 31);
+		while((encodedValue & ~0x7f) != 0) {
+			buffer.put((byte) ((encodedValue & 0x7f) | 0x80));
+			encodedValue >>>= 7;
+		}
+		buffer.put((byte) encodedValue);
+	}
+	
+	public static int readVarInt(ByteBuffer buffer) {
+		int encodedValue = 0;
+		int shift = 0;
+		byte currentByte;
+		do {
+			currentByte = buffer.get();
+			encodedValue |= (currentByte & 0x7f) << shift;
+			shift += 7;
+		} while((currentByte & 0x80) != 0);
+		return (encodedValue >>> 1) ^ -(encodedValue & 1);
+	}
+	
+}
@@ -0,0 +1,30 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public class PacketBufferPool {
+
+	// Direct buffers can be handed straight to the socket without being copied, but are slow to allocate, so they are reused rather than
+	// created for each packet
+	private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+	private final int bufferSize;
+	
+	public PacketBufferPool(int initialBufferCount, int bufferSize) {
+		this.bufferSize = bufferSize;
+		for(int i = 0; i < initialBufferCount; i++) {
+			freeBuffers.push(ByteBuffer.allocateDirect(bufferSize));
+		}
+	}
+	
+	public ByteBuffer acquire() {
+		final ByteBuffer buffer = freeBuffers.poll();
+		return (buffer != null) ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+	
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		freeBuffers.push(buffer);
+	}
+	
+}
@@ -0,0 +1,217 @@
+package network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import graphics.Art;
+import graphics.Entity;
+import utils.Level;
+
+public class Snapshot {
+
+	// Positions are sent in eighths of a world unit, and angles in 65536ths of a full turn
+	private static final float POSITION_SCALE = 8.0f;
+	private static final float ANGLE_SCALE = (float) (65536 / (2 * Math.PI));
+	
+	private static final int FIELD_X = 1, FIELD_Y = 2, FIELD_Z = 4, FIELD_SPRITE = 8, FIELD_ANGLE = 16;
+	// The most an entity can take up in a part: the gap to its index, its changed fields and four values
+	private static final int MAX_ENTITY_SIZE = 5 + 1 + (4 * 5);
+	
+	public int tick = -1;
+	public int playerX, playerY, playerZ, playerAngle;
+	
+	// The sprite of each entity is sent as its index in Art.ALL_SPRITES
+	public int entityCount = 0;
+	public int[] entityX = new int[64], entityY = new int[64], entityZ = new int[64], entitySprite = new int[64];
+	
+	public void capture(Level level, int tick) {
+		this.tick = tick;
+		playerX = quantisePosition(level.player.camera.x);
+		playerY = quantisePosition(level.player.camera.y);
+		playerZ = quantisePosition(level.player.camera.z);
+		playerAngle = Math.round(level.player.camera.angle * ANGLE_SCALE) & 0xffff;
+		
+		setEntityCount(level.entities.size());
+		for(int i = 0; i < entityCount; i++) {
+			final Entity entity = level.entities.get(i);
+			entityX[i] = quantisePosition(entity.x);
+			entityY[i] = quantisePosition(entity.y);
+			entityZ[i] = quantisePosition(entity.z);
+			entitySprite[i] = Art.getSpriteIndex(entity.sprite);
+		}
+	}
+	
+	public void applyTo(Level level) {
+		level.player.camera.x = playerX / POSITION_SCALE;
+		level.player.camera.y = playerY / POSITION_SCALE;
+		level.player.camera.z = playerZ / POSITION_SCALE;
+		level.player.camera.angle = playerAngle / ANGLE_SCALE;
+		
+		// Both sides load the entities from the same entity map in the same order, so they line up by index
+		final int sharedEntityCount = Math.min(entityCount, level.entities.size());
+		for(int i = 0; i < sharedEntityCount; i++) {
+			final Entity entity = level.entities.get(i);
+			entity.x = entityX[i] / POSITION_SCALE;
+			entity.y = entityY[i] / POSITION_SCALE;
+			entity.z = entityZ[i] / POSITION_SCALE;
+			if(entitySprite[i] >= 0) entity.sprite = Art.ALL_SPRITES[entitySprite[i]];
+		}
+		
+		// The client never updates the level itself, so move any lights the entities carry here instead
+		level.lightMap.update(level);
+	}
+	
+	public boolean matches(Snapshot other) {
+		if((playerX != other.playerX) || (playerY != other.playerY) || (playerZ != other.playerZ) || (playerAngle != other.playerAngle) || (entityCount != other.entityCount))
+			return false;
+		for(int i = 0; i < entityCount; i++) {
+			if((entityX[i] != other.entityX[i]) || (entityY[i] != other.entityY[i]) || (entityZ[i] != other.entityZ[i]) || (entitySprite[i] != other.entitySprite[i]))
+				return false;
+		}
+		return true;
+	}
+	
+	public int write(ByteBuffer buffer, Snapshot baseline, int partIndex, int firstEntity) {
+		// Every value is written as the difference from the baseline the client already has, and anything that hasn't changed is skipped entirely.
+		// Without a baseline the values are written against zero, which makes a full snapshot. A snapshot is split into as many parts as it takes
+		// to fit in the buffer, starting from the given entity, and the index of the first entity that didn't fit is returned (or the entity count
+		// once the last part has been written).
+		buffer.putInt(tick);
+		buffer.putInt((baseline != null) ? baseline.tick : -1);
+		buffer.putShort((short) partIndex);
+		final int lastPartFlagPosition = buffer.position();
+		buffer.put((byte) 0);
+		
+		// Only the first part has the player
+		if(partIndex == 0) writePlayer(buffer, baseline);
+		NetworkProtocol.writeVarInt(buffer, entityCount);
+		
+		// Only the entities that changed are written, each starting with how many entities on from the previous one it is (and a zero gap ends
+		// the part). Mobs that are asleep (out of sight of the player) don't move, so they cost nothing at all.
+		final int baselineEntityCount = (baseline != null) ? baseline.entityCount : 0;
+		int previousEntity = -1;
+		for(int i = firstEntity; i < entityCount; i++) {
+			final boolean hasBaseline = (i < baselineEntityCount);
+			final int baseX = hasBaseline ? baseline.entityX[i] : 0;
+			final int baseY = hasBaseline ? baseline.entityY[i] : 0;
+			final int baseZ = hasBaseline ? baseline.entityZ[i] : 0;
+			final int baseSprite = hasBaseline ? baseline.entitySprite[i] : 0;
+			
+			int entityFields = 0;
+			if(entityX[i] != baseX) entityFields |= FIELD_X;
+			if(entityY[i] != baseY) entityFields |= FIELD_Y;
+			if(entityZ[i] != baseZ) entityFields |= FIELD_Z;
+			if(entitySprite[i] != baseSprite) entityFields |= FIELD_SPRITE;
+			if(entityFields == 0)
+				continue;
+			
+			// Leave room for the end of the part, and carry on in the next part if this entity might not fit
+			if(buffer.remaining() < (MAX_ENTITY_SIZE + 1)) {
+				buffer.put((byte) 0);
+				return i;
+			}
+			
+			NetworkProtocol.writeVarInt(buffer, i - previousEntity);
+			previousEntity = i;
+			buffer.put((byte) entityFields);
+			if((entityFields & FIELD_X) != 0) NetworkProtocol.writeVarInt(buffer, entityX[i] - baseX);
+			if((entityFields & FIELD_Y) != 0) NetworkProtocol.writeVarInt(buffer, entityY[i] - baseY);
+			if((entityFields & FIELD_Z) != 0) NetworkProtocol.writeVarInt(buffer, entityZ[i] - baseZ);
+			if((entityFields & FIELD_SPRITE) != 0) NetworkProtocol.writeVarInt(buffer, entitySprite[i] - baseSprite);
+		}
+		
+		buffer.put((byte) 0);
+		buffer.put(lastPartFlagPosition, (byte) 1);
+		return entityCount;
+	}
+	
+	private void writePlayer(ByteBuffer buffer, Snapshot baseline) {
+		final int basePlayerX = (baseline != null) ? baseline.playerX : 0;
+		final int basePlayerY = (baseline != null) ? baseline.playerY : 0;
+		final int basePlayerZ = (baseline != null) ? baseline.playerZ : 0;
+		final int basePlayerAngle = (baseline != null) ? baseline.playerAngle : 0;
+		int playerFields = 0;
+		if(playerX != basePlayerX) playerFields |= FIELD_X;
+		if(playerY != basePlayerY) playerFields |= FIELD_Y;
+		if(playerZ != basePlayerZ) playerFields |= FIELD_Z;
+		if(playerAngle != basePlayerAngle) playerFields |= FIELD_ANGLE;
+		buffer.put((byte) playerFields);
+		if((playerFields & FIELD_X) != 0) NetworkProtocol.writeVarInt(buffer, playerX - basePlayerX);
+		if((playerFields & FIELD_Y) != 0) NetworkProtocol.writeVarInt(buffer, playerY - basePlayerY);
+		if((playerFields & FIELD_Z) != 0) NetworkProtocol.writeVarInt(buffer, playerZ - basePlayerZ);
+		// Angles wrap around, so send the shortest way round
+		if((playerFields & FIELD_ANGLE) != 0) NetworkProtocol.writeVarInt(buffer, (short) (playerAngle - basePlayerAngle));
+	}
+	
+	public void readPart(ByteBuffer buffer, int partIndex) {
+		// The tick, baseline tick, part index and last part flag have already been read by the caller, and the baseline has already been copied
+		// into this snapshot. Each value is only ever in one part, so the parts can be read in any order.
+		if(partIndex == 0) {
+			final int playerFields = buffer.get();
+			if((playerFields & FIELD_X) != 0) playerX += NetworkProtocol.readVarInt(buffer);
+			if((playerFields & FIELD_Y) != 0) playerY += NetworkProtocol.readVarInt(buffer);
+			if((playerFields & FIELD_Z) != 0) playerZ += NetworkProtocol.readVarInt(buffer);
+			if((playerFields & FIELD_ANGLE) != 0) playerAngle = (playerAngle + NetworkProtocol.readVarInt(buffer)) & 0xffff;
+		}
+		
+		// Every part has the entity count, but only the first part to arrive actually changes it
+		final int count = NetworkProtocol.readVarInt(buffer);
+		if(count != entityCount) {
+			final int previousEntityCount = entityCount;
+			setEntityCount(count);
+			for(int i = previousEntityCount; i < entityCount; i++) {
+				entityX[i] = entityY[i] = entityZ[i] = entitySprite[i] = 0;
+			}
+		}
+		
+		int entityIndex = -1;
+		int gap;
+		while((gap = NetworkProtocol.readVarInt(buffer)) != 0) {
+			entityIndex += gap;
+			final int entityFields = buffer.get();
+			final int deltaX = ((entityFields & FIELD_X) != 0) ? NetworkProtocol.readVarInt(buffer) : 0;
+			final int deltaY = ((entityFields & FIELD_Y) != 0) ? NetworkProtocol.readVarInt(buffer) : 0;
+			final int deltaZ = ((entityFields & FIELD_Z) != 0) ? NetworkProtocol.readVarInt(buffer) : 0;
+			final int deltaSprite = ((entityFields & FIELD_SPRITE) != 0) ? NetworkProtocol.readVarInt(buffer) : 0;
+			if(entityIndex >= entityCount)
+				continue;
+			entityX[entityIndex] += deltaX;
+			entityY[entityIndex] += deltaY;
+			entityZ[entityIndex] += deltaZ;
+			entitySprite[entityIndex] += deltaSprite;
+		}
+	}
+	
+	public void copyFrom(Snapshot other) {
+		if(other == null) {
+			playerX = playerY = playerZ = playerAngle = 0;
+			entityCount = 0;
+			return;
+		}
+		
+		playerX = other.playerX;
+		playerY = other.playerY;
+		playerZ = other.playerZ;
+		playerAngle = other.playerAngle;
+		setEntityCount(other.entityCount);
+		System.arraycopy(other.entityX, 0, entityX, 0, entityCount);
+		System.arraycopy(other.entityY, 0, entityY, 0, entityCount);
+		System.arraycopy(other.entityZ, 0, entityZ, 0, entityCount);
+		System.arraycopy(other.entitySprite, 0, entitySprite, 0, entityCount);
+	}
+	
+	private void setEntityCount(int count) {
+		// Only grow the arrays when the level has more entities than ever before, so capturing doesn't normally allocate
+		if(count > entityX.length) {
+			final int capacity = Math.max(count, entityX.length * 2);
+			entityX = Arrays.copyOf(entityX, capacity);
+			entityY = Arrays.copyOf(entityY, capacity);
+			entityZ = Arrays.copyOf(entityZ, capacity);
+			entitySprite = Arrays.copyOf(entitySprite, capacity);
+		}
+		entityCount = count;
+	}
+	
+	private static int quantisePosition(float position) { return Math.round(position * POSITION_SCALE); }
+	
+}
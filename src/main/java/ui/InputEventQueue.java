@@ -0,0 +1,82 @@
+package ui;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InputEventQueue {
+
+	public static final int KEY_PRESSED = 0;
+	public static final int KEY_RELEASED = 1;
+	public static final int MOUSE_PRESSED = 2;
+	public static final int MOUSE_RELEASED = 3;
+	public static final int MOUSE_MOVED = 4;
+	
+	// A ring buffer with a single producer (the AWT event thread) and a single consumer (the game thread). Each event is stored across
+	// preallocated arrays, and the producer only publishes a slot by moving the write index after the slot has been filled in.
+	private final int capacityMask;
+	private final long[] timestamps;
+	private final int[] types;
+	private final int[] codes;
+	private final int[] xPositions;
+	private final int[] yPositions;
+	
+	private final AtomicLong writeIndex = new AtomicLong(0);
+	private final AtomicLong readIndex = new AtomicLong(0);
+	private final AtomicLong droppedEventCount = new AtomicLong(0);
+	
+	// The event most recently taken by the consumer through next()
+	public int eventType, eventCode, eventX, eventY;
+	public long eventTimestamp;
+	
+	public InputEventQueue(int capacity) {
+		// Round the capacity up to a power of two, so that slots can be found with a mask rather than a division
+		final int actualCapacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		capacityMask = actualCapacity - 1;
+		
+		timestamps = new long[actualCapacity];
+		types = new int[actualCapacity];
+		codes = new int[actualCapacity];
+		xPositions = new int[actualCapacity];
+		yPositions = new int[actualCapacity];
+	}
+	
+	public boolean offer(int type, int code, int x, int y, long timestamp) {
+		final long currentWriteIndex = writeIndex.get();
+		
+		// Never block the AWT event thread. If the game has fallen so far behind that the queue is full, drop the event and count it instead.
+		if((currentWriteIndex - readIndex.get()) > capacityMask) {
+			droppedEventCount.incrementAndGet();
+			return false;
+		}
+		
+		final int slot = (int) (currentWriteIndex & capacityMask);
+		timestamps[slot] = timestamp;
+		types[slot] = type;
+		codes[slot] = code;
+		xPositions[slot] = x;
+		yPositions[slot] = y;
+		
+		// Publishing the new write index makes the slot contents visible to the consumer
+		writeIndex.lazySet(currentWriteIndex + 1);
+		return true;
+	}
+	
+	public boolean next() {
+		final long currentReadIndex = readIndex.get();
+		if(currentReadIndex == writeIndex.get())
+			return false;
+		
+		final int slot = (int) (currentReadIndex & capacityMask);
+		eventTimestamp = timestamps[slot];
+		eventType = types[slot];
+		eventCode = codes[slot];
+		eventX = xPositions[slot];
+		eventY = yPositions[slot];
+		
+		// Hand the slot back to the producer
+		readIndex.lazySet(currentReadIndex + 1);
+		return true;
+	}
+	
+	public long getDroppedEventCount() { return droppedEventCount.get(); }
+	
+}
@@ -7,9 +7,88 @@ import java.awt.event.MouseMotionListener;
 
 import javax.swing.event.MouseInputListener;
 
+import utils.FrameProfiler;
+import utils.FrameProfiler.Phase;
+
 public class InputHandler implements KeyListener, MouseInputListener, MouseMotionListener {
 
-	public boolean[] keyStates = new boolean[65535];
+	private static final int KEY_CODE_COUNT = 65536;
+	
+	// AWT events are only ever written to the queue. The game thread drains it at the start of each tick into the key states below, which are
+	// then only touched by the game thread.
+	private final InputEventQueue eventQueue = new InputEventQueue(1024);
+	public volatile InputRecorder recorder = null;
+	
+	// Each key is a single bit. Keys that were pressed at any point during a tick are also remembered separately, so that a key pressed and
+	// released between two ticks still counts as being down for the tick.
+	private final long[] heldKeys = new long[KEY_CODE_COUNT / 64];
+	private final long[] pressedKeys = new long[KEY_CODE_COUNT / 64];
+	
+	public int mouseX = 0, mouseY = 0;
+	public int heldMouseButtons = 0;
+	
+	public boolean isKeyDown(int keyCode) {
+		final int word = (keyCode >>> 6);
+		final long bit = (1L << keyCode);
+		return ((heldKeys[word] | pressedKeys[word]) & bit) != 0;
+	}
+	
+	public void beginTick() {
+		for(int i = 0; i < pressedKeys.length; i++) {
+			pressedKeys[i] = 0;
+		}
+	}
+	
+	public void applyKeyEvent(int keyCode, boolean isPressed) {
+		final int word = (keyCode >>> 6);
+		final long bit = (1L << keyCode);
+		if(isPressed) {
+			heldKeys[word] |= bit;
+			pressedKeys[word] |= bit;
+		} else {
+			heldKeys[word] &= ~bit;
+		}
+	}
+	
+	public void poll(FrameProfiler profiler) {
+		beginTick();
+		
+		// Apply every event that has arrived since the last tick, recording how long each waited before reaching the game
+		final long pollTime = System.nanoTime();
+		while(eventQueue.next()) {
+			if(profiler != null) profiler.record(Phase.INPUT_LATENCY, pollTime - eventQueue.eventTimestamp);
+			
+			switch(eventQueue.eventType) {
+				case InputEventQueue.KEY_PRESSED:
+					// Ignore key repeats, as the key is already held
+					if((heldKeys[eventQueue.eventCode >>> 6] & (1L << eventQueue.eventCode)) != 0)
+						break;
+					applyKeyEvent(eventQueue.eventCode, true);
+					if(recorder != null) recorder.onKeyEvent(eventQueue.eventCode, true, eventQueue.eventTimestamp);
+					break;
+				case InputEventQueue.KEY_RELEASED:
+					applyKeyEvent(eventQueue.eventCode, false);
+					if(recorder != null) recorder.onKeyEvent(eventQueue.eventCode, false, eventQueue.eventTimestamp);
+					break;
+				case InputEventQueue.MOUSE_PRESSED:
+					heldMouseButtons |= (1 << eventQueue.eventCode);
+					mouseX = eventQueue.eventX;
+					mouseY = eventQueue.eventY;
+					break;
+				case InputEventQueue.MOUSE_RELEASED:
+					heldMouseButtons &= ~(1 << eventQueue.eventCode);
+					mouseX = eventQueue.eventX;
+					mouseY = eventQueue.eventY;
+					break;
+				case InputEventQueue.MOUSE_MOVED:
+					mouseX = eventQueue.eventX;
+					mouseY = eventQueue.eventY;
+					break;
+			}
+		}
+	}
+	
+	public long getDroppedEventCount() { return eventQueue.getDroppedEventCount(); }
 	
 	@Override
 	public void mouseClicked(MouseEvent e) {
@@ -18,10 +97,12 @@ public class InputHandler implements KeyListener, MouseInputListener, MouseMotio
 
 	@Override
 	public void mousePressed(MouseEvent e) {
+		eventQueue.offer(InputEventQueue.MOUSE_PRESSED, e.getButton(), e.getX(), e.getY(), System.nanoTime());
 	}
 
 	@Override
 	public void mouseReleased(MouseEvent e) {
+		eventQueue.offer(InputEventQueue.MOUSE_RELEASED, e.getButton(), e.getX(), e.getY(), System.nanoTime());
 	}
 
 	@Override
@@ -34,10 +115,12 @@ public class InputHandler implements KeyListener, MouseInputListener, MouseMotio
 
 	@Override
 	public void mouseDragged(MouseEvent e) {
+		eventQueue.offer(InputEventQueue.MOUSE_MOVED, 0, e.getX(), e.getY(), System.nanoTime());
 	}
 
 	@Override
 	public void mouseMoved(MouseEvent e) {
+		eventQueue.offer(InputEventQueue.MOUSE_MOVED, 0, e.getX(), e.getY(), System.nanoTime());
 	}
 
 	@Override
@@ -46,12 +129,12 @@ public class InputHandler implements KeyListener, MouseInputListener, MouseMotio
 
 	@Override
 	public void keyPressed(KeyEvent e) {
-		keyStates[e.getKeyCode()] = true;
+		eventQueue.offer(InputEventQueue.KEY_PRESSED, e.getKeyCode(), 0, 0, System.nanoTime());
 	}
 
 	@Override
 	public void keyReleased(KeyEvent e) {
-		keyStates[e.getKeyCode()] = false;
+		eventQueue.offer(InputEventQueue.KEY_RELEASED, e.getKeyCode(), 0, 0, System.nanoTime());
 	}
 
 }
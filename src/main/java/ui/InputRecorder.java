@@ -0,0 +1,79 @@
+package ui;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class InputRecorder {
+
+	public static final int FILE_MAGIC = 0x444f4f4d;
+	public static final int FILE_VERSION = 1;
+	
+	private final DataOutputStream output;
+	private final long recordingStartTime;
+	private boolean isClosed = false;
+	
+	// Key events are handed over by the game thread as it drains the input queue, and are held here until the tick is recorded
+	private int[] pendingKeyCodes = new int[64];
+	private boolean[] pendingKeyStates = new boolean[64];
+	private int[] pendingTimestamps = new int[64];
+	private int pendingEventCount = 0;
+	
+	public InputRecorder(String path, String levelName) throws IOException {
+		output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		recordingStartTime = System.nanoTime();
+		
+		// Write the header identifying the file and the level being played
+		output.writeInt(FILE_MAGIC);
+		output.writeShort(FILE_VERSION);
+		output.writeUTF(levelName);
+	}
+	
+	public void onKeyEvent(int keyCode, boolean isPressed, long eventTime) {
+		if(pendingEventCount == pendingKeyCodes.length) {
+			pendingKeyCodes = Arrays.copyOf(pendingKeyCodes, pendingEventCount * 2);
+			pendingKeyStates = Arrays.copyOf(pendingKeyStates, pendingEventCount * 2);
+			pendingTimestamps = Arrays.copyOf(pendingTimestamps, pendingEventCount * 2);
+		}
+		
+		pendingKeyCodes[pendingEventCount] = keyCode;
+		pendingKeyStates[pendingEventCount] = isPressed;
+		pendingTimestamps[pendingEventCount] = (int) ((eventTime - recordingStartTime) / 1000);
+		pendingEventCount++;
+	}
+	
+	public synchronized void recordTick(float delta) {
+		// The shutdown hook may have closed the recording while the game was still running
+		if(isClosed)
+			return;
+		
+		try {
+			// Each tick is stored as its delta, followed by the key events (with their timestamps in microseconds) that happened before it
+			output.writeFloat(delta);
+			output.writeShort(pendingEventCount);
+			for(int i = 0; i < pendingEventCount; i++) {
+				output.writeInt(pendingTimestamps[i]);
+				output.writeShort(pendingKeyCodes[i]);
+				output.writeBoolean(pendingKeyStates[i]);
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to record input tick - " + e.getMessage());
+		}
+		pendingEventCount = 0;
+	}
+	
+	public synchronized void close() {
+		if(isClosed)
+			return;
+		isClosed = true;
+		
+		try {
+			output.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close input recording - " + e.getMessage());
+		}
+	}
+	
+}
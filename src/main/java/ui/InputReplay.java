@@ -0,0 +1,80 @@
+package ui;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class InputReplay {
+
+	public final String levelName;
+	
+	private final DataInputStream input;
+	private boolean hasNextTick = true;
+	private float nextTickDelta = 0;
+	private int tickCount = 0;
+	
+	public InputReplay(String path) throws IOException {
+		input = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		
+		// Check the header matches a recording we know how to play
+		if(input.readInt() != InputRecorder.FILE_MAGIC)
+			throw new IOException("'" + path + "' is not an input recording");
+		final int version = input.readUnsignedShort();
+		if(version != InputRecorder.FILE_VERSION)
+			throw new IOException("Input recording version " + version + " is not supported");
+		levelName = input.readUTF();
+		
+		readNextTickDelta();
+	}
+	
+	public boolean hasNextTick() { return hasNextTick; }
+	public int getTickCount() { return tickCount; }
+	
+	public float nextTick(InputHandler tickInput) {
+		if(!hasNextTick)
+			return 0;
+		
+		final float delta = nextTickDelta;
+		try {
+			// Apply the key events recorded before this tick, in the same way the live input queue is drained
+			tickInput.beginTick();
+			final int eventCount = input.readUnsignedShort();
+			for(int i = 0; i < eventCount; i++) {
+				input.readInt();
+				final int keyCode = input.readUnsignedShort();
+				tickInput.applyKeyEvent(keyCode, input.readBoolean());
+			}
+		} catch (IOException e) {
+			System.err.println("Input recording ended part way through a tick - " + e.getMessage());
+			hasNextTick = false;
+			return 0;
+		}
+		
+		tickCount++;
+		readNextTickDelta();
+		return delta;
+	}
+	
+	public void close() {
+		hasNextTick = false;
+		try {
+			input.close();
+		} catch (IOException e) {
+			System.err.println("Failed to close input recording - " + e.getMessage());
+		}
+	}
+	
+	private void readNextTickDelta() {
+		try {
+			nextTickDelta = input.readFloat();
+		} catch (EOFException e) {
+			hasNextTick = false;
+		} catch (IOException e) {
+			System.err.println("Failed to read input recording - " + e.getMessage());
+			hasNextTick = false;
+		}
+	}
+	
+}
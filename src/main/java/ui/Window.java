@@ -11,6 +11,8 @@ public class Window extends Canvas {
 
 	private final JFrame jframe;
 	public final InputHandler inputHandler;
+	private Graphics cachedDrawGraphics = null;
+	private BufferStrategy cachedDrawGraphicsStrategy = null;
 	
 	public Window(String title, int width, int height) {
 		inputHandler = new InputHandler();
@@ -43,4 +45,24 @@ public class Window extends Canvas {
 	}
 	public Graphics getDrawGraphics() { return getBufferStrategy().getDrawGraphics(); }
 	
+	public Graphics getCachedDrawGraphics() {
+		// Asking the buffer strategy for its graphics creates a new object every frame. As the back buffer stays the same until its contents are
+		// lost (or the buffer strategy is replaced), keep hold of the same graphics until then.
+		final BufferStrategy bufferStrategy = getBufferStrategy();
+		if((cachedDrawGraphics == null) || (bufferStrategy != cachedDrawGraphicsStrategy) || bufferStrategy.contentsLost() || bufferStrategy.contentsRestored()) {
+			disposeCachedDrawGraphics();
+			cachedDrawGraphics = bufferStrategy.getDrawGraphics();
+			cachedDrawGraphicsStrategy = bufferStrategy;
+		}
+		return cachedDrawGraphics;
+	}
+	
+	public void disposeCachedDrawGraphics() {
+		if(cachedDrawGraphics == null)
+			return;
+		cachedDrawGraphics.dispose();
+		cachedDrawGraphics = null;
+		cachedDrawGraphicsStrategy = null;
+	}
+	
 }
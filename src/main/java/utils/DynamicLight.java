@@ -0,0 +1,20 @@
+package utils;
+
+public class DynamicLight {
+
+	// The light follows the entity it is attached to, reaching out to the radius (in tiles) and fading from its intensity down to nothing
+	public float radius;
+	public int intensity;
+
+	// Where the light was last added to the light map, so that exactly the same amount can be taken away again when it moves
+	boolean isApplied = false;
+	float appliedTileX, appliedTileZ, appliedRadius;
+	int appliedIntensity;
+	boolean isSeen = false;
+
+	public DynamicLight(float radius, int intensity) {
+		this.radius = radius;
+		this.intensity = intensity;
+	}
+
+}
@@ -0,0 +1,24 @@
+package utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("doom.Frame")
+@Label("Frame")
+@Category("Doom")
+@Description("The time spent in each phase of a rendered frame")
+public class FrameEvent extends Event {
+
+	@Label("Clear") @Timespan(Timespan.NANOSECONDS) long clear;
+	@Label("Walls") @Timespan(Timespan.NANOSECONDS) long walls;
+	@Label("Floor And Ceiling") @Timespan(Timespan.NANOSECONDS) long floorAndCeiling;
+	@Label("Entities") @Timespan(Timespan.NANOSECONDS) long entities;
+	@Label("Fog") @Timespan(Timespan.NANOSECONDS) long fog;
+	@Label("Present") @Timespan(Timespan.NANOSECONDS) long present;
+	@Label("Frame") @Timespan(Timespan.NANOSECONDS) long frame;
+	
+}
@@ -0,0 +1,198 @@
+package utils;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import jdk.jfr.EventType;
+
+public class FrameProfiler implements FrameProfilerMBean {
+
+	public enum Phase { CLEAR, WALLS, FLOOR_AND_CEILING, ENTITIES, FOG, PRESENT, UPDATE, FRAME, INPUT_LATENCY }
+
+	// Calling Phase.values() creates a new array each time, so keep a single copy around for the game loop
+	private static final Phase[] PHASES = Phase.values();
+	private static final EventType FRAME_EVENT_TYPE = EventType.getEventType(FrameEvent.class);
+
+	// The game thread records into the live histograms, which are copied into the published histograms at the end of each reporting interval
+	private final FrameTimeHistogram[] liveHistograms = new FrameTimeHistogram[PHASES.length];
+	private final FrameTimeHistogram[] publishedHistograms = new FrameTimeHistogram[PHASES.length];
+
+	private final long[] currentFramePhaseNanoseconds = new long[PHASES.length];
+	private long frameStartTime = 0;
+	private long lastPhaseEndTime = 0;
+
+	private volatile boolean overlayEnabled = false;
+	private final StringBuilder overlayTextBuilder = new StringBuilder(64);
+	private final char[][] overlayLines = new char[PHASES.length + 1][64];
+	private final int[] overlayLineLengths = new int[PHASES.length + 1];
+
+	public FrameProfiler() {
+		for(int i = 0; i < PHASES.length; i++) {
+			liveHistograms[i] = new FrameTimeHistogram();
+			publishedHistograms[i] = new FrameTimeHistogram();
+		}
+	}
+
+	public void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("doom:type=FrameProfiler"));
+		} catch (Exception e) {
+			System.err.println("Failed to register frame profiler MBean - " + e.getMessage());
+		}
+	}
+
+	public void beginFrame() {
+		frameStartTime = lastPhaseEndTime = System.nanoTime();
+		for(int i = 0; i < currentFramePhaseNanoseconds.length; i++) {
+			currentFramePhaseNanoseconds[i] = 0;
+		}
+	}
+
+	public void endPhase(Phase phase) {
+		// Each phase is timed from the end of the previous phase (or the start of the frame), so only one clock read is needed per phase
+		final long currentTime = System.nanoTime();
+		currentFramePhaseNanoseconds[phase.ordinal()] += (currentTime - lastPhaseEndTime);
+		lastPhaseEndTime = currentTime;
+	}
+
+	public void endFrame() {
+		currentFramePhaseNanoseconds[Phase.FRAME.ordinal()] = (System.nanoTime() - frameStartTime);
+
+		for(int i = 0; i < PHASES.length; i++) {
+			// Updates and input latency are recorded separately, as they don't happen as part of a frame
+			if((PHASES[i] == Phase.UPDATE) || (PHASES[i] == Phase.INPUT_LATENCY))
+				continue;
+			liveHistograms[i].record(currentFramePhaseNanoseconds[i]);
+		}
+
+		// Only create a flight recorder event if a recording is actually listening for them
+		if(FRAME_EVENT_TYPE.isEnabled()) {
+			final FrameEvent event = new FrameEvent();
+			event.clear = currentFramePhaseNanoseconds[Phase.CLEAR.ordinal()];
+			event.walls = currentFramePhaseNanoseconds[Phase.WALLS.ordinal()];
+			event.floorAndCeiling = currentFramePhaseNanoseconds[Phase.FLOOR_AND_CEILING.ordinal()];
+			event.entities = currentFramePhaseNanoseconds[Phase.ENTITIES.ordinal()];
+			event.fog = currentFramePhaseNanoseconds[Phase.FOG.ordinal()];
+			event.present = currentFramePhaseNanoseconds[Phase.PRESENT.ordinal()];
+			event.frame = currentFramePhaseNanoseconds[Phase.FRAME.ordinal()];
+			event.commit();
+		}
+	}
+
+	public long getLastFrameNanoseconds(Phase phase) { return currentFramePhaseNanoseconds[phase.ordinal()]; }
+	
+	public void record(Phase phase, long nanoseconds) {
+		liveHistograms[phase.ordinal()].record(nanoseconds);
+	}
+
+	public void publish() {
+		// Make the latest interval available to JMX, and start a fresh interval
+		synchronized(publishedHistograms) {
+			for(int i = 0; i < PHASES.length; i++) {
+				liveHistograms[i].copyTo(publishedHistograms[i]);
+				liveHistograms[i].clear();
+			}
+		}
+
+		if(overlayEnabled)
+			updateOverlayText();
+	}
+
+	public void drawOverlay(Graphics graphics) {
+		graphics.setColor(Color.YELLOW);
+		for(int i = 0; i < overlayLines.length; i++) {
+			graphics.drawChars(overlayLines[i], 0, overlayLineLengths[i], 8, 16 + i * 14);
+		}
+	}
+
+	@Override
+	public boolean isOverlayEnabled() { return overlayEnabled; }
+	@Override
+	public void setOverlayEnabled(boolean overlayEnabled) { this.overlayEnabled = overlayEnabled; }
+
+	@Override
+	public long getFrameCount() {
+		synchronized(publishedHistograms) {
+			return publishedHistograms[Phase.FRAME.ordinal()].getTotalCount();
+		}
+	}
+	@Override
+	public double getFrameP50Millis() { return getPhasePercentileMillis(Phase.FRAME.name(), 50); }
+	@Override
+	public double getFrameP99Millis() { return getPhasePercentileMillis(Phase.FRAME.name(), 99); }
+	@Override
+	public double getFrameMaxMillis() { return getPhaseMaxMillis(Phase.FRAME.name()); }
+
+	@Override
+	public double getPhasePercentileMillis(String phaseName, double percentile) {
+		final Phase phase = Phase.valueOf(phaseName);
+		synchronized(publishedHistograms) {
+			return publishedHistograms[phase.ordinal()].getPercentileNanoseconds(percentile) / 1000000.0;
+		}
+	}
+
+	@Override
+	public double getPhaseMaxMillis(String phaseName) {
+		final Phase phase = Phase.valueOf(phaseName);
+		synchronized(publishedHistograms) {
+			return publishedHistograms[phase.ordinal()].getMaxNanoseconds() / 1000000.0;
+		}
+	}
+
+	@Override
+	public String getReport() {
+		final StringBuilder report = new StringBuilder();
+		synchronized(publishedHistograms) {
+			for(int i = 0; i < PHASES.length; i++) {
+				appendPhaseSummary(report, i);
+				report.append('\n');
+			}
+		}
+		return report.toString();
+	}
+
+	private void updateOverlayText() {
+		// The overlay text is only rebuilt once per interval, and is written into fixed character arrays so that drawing it never allocates
+		synchronized(publishedHistograms) {
+			overlayTextBuilder.setLength(0);
+			overlayTextBuilder.append("phase: p50 / p99 / max (ms)");
+			copyOverlayLine(0);
+
+			for(int i = 0; i < PHASES.length; i++) {
+				overlayTextBuilder.setLength(0);
+				appendPhaseSummary(overlayTextBuilder, i);
+				copyOverlayLine(i + 1);
+			}
+		}
+	}
+
+	private void copyOverlayLine(int lineIndex) {
+		final int lineLength = Math.min(overlayTextBuilder.length(), overlayLines[lineIndex].length);
+		overlayTextBuilder.getChars(0, lineLength, overlayLines[lineIndex], 0);
+		overlayLineLengths[lineIndex] = lineLength;
+	}
+
+	private void appendPhaseSummary(StringBuilder builder, int phaseIndex) {
+		final FrameTimeHistogram histogram = publishedHistograms[phaseIndex];
+		builder.append(PHASES[phaseIndex].name()).append(": ");
+		appendMillis(builder, histogram.getPercentileNanoseconds(50));
+		builder.append(" / ");
+		appendMillis(builder, histogram.getPercentileNanoseconds(99));
+		builder.append(" / ");
+		appendMillis(builder, histogram.getMaxNanoseconds());
+	}
+
+	private static void appendMillis(StringBuilder builder, long nanoseconds) {
+		// Write the time in milliseconds to two decimal places, using only integer appends (as appending floating point values allocates)
+		final long hundredthsOfMillis = (nanoseconds + 5000) / 10000;
+		builder.append(hundredthsOfMillis / 100).append('.');
+		final long fraction = hundredthsOfMillis % 100;
+		if(fraction < 10)
+			builder.append('0');
+		builder.append(fraction);
+	}
+
+}
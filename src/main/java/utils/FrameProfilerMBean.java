@@ -0,0 +1,18 @@
+package utils;
+
+public interface FrameProfilerMBean {
+
+	// The statistics reported here cover the most recently completed reporting interval (roughly the last second of play)
+	long getFrameCount();
+	double getFrameP50Millis();
+	double getFrameP99Millis();
+	double getFrameMaxMillis();
+	
+	double getPhasePercentileMillis(String phaseName, double percentile);
+	double getPhaseMaxMillis(String phaseName);
+	String getReport();
+	
+	boolean isOverlayEnabled();
+	void setOverlayEnabled(boolean overlayEnabled);
+	
+}
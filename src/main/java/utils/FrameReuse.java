@@ -0,0 +1,152 @@
+package utils;
+
+import java.util.Arrays;
+
+import graphics.Camera;
+import graphics.Entity;
+import graphics.RenderPane3D;
+import graphics.Sprite;
+
+public class FrameReuse {
+
+	// NONE means the last frame can be shown again as it is, SPRITES means only the entities in the dirty area need drawing again, and ALL
+	// means the whole frame has to be drawn again
+	public enum Change { NONE, SPRITES, ALL }
+	
+	// The area of the screen that needs redrawing when only sprites have changed
+	public int dirtyLeft, dirtyTop, dirtyRight, dirtyBottom;
+	// Whether a frame that is drawn from scratch should save its world layer. Saving it copies the whole frame, which is wasted while the camera
+	// is moving (as the next frame will most likely need drawing from scratch too), so it's only saved once the camera has stopped. Sprites are
+	// only ever redrawn over a saved world layer.
+	public boolean shouldSaveWorldLayer = true;
+	private boolean hasSavedWorldLayer = false;
+	
+	// What the last frame was drawn from
+	private Level lastLevel = null;
+	private RenderPane3D lastRenderPane = null;
+	private boolean lastUsePortalRenderer = false;
+	private int lastLightVersion = -1;
+	private float lastCameraX, lastCameraY, lastCameraZ, lastCameraAngle;
+	
+	// The state of each entity when the last frame was drawn, along with the area of the screen it was drawn over (empty if it wasn't drawn)
+	private int entityCount = -1;
+	private float[] entityX = new float[64], entityY = new float[64], entityZ = new float[64];
+	private Sprite[] entitySprites = new Sprite[64];
+	private int[] entityBounds = new int[64 * 4];
+	
+	public void invalidate() { lastLevel = null; }
+	
+	public Change checkForChanges(Level level, Camera camera, RenderPane3D renderPane) {
+		// Anything that changes what the walls, floor and ceiling look like needs a whole new frame. Lights moving only matter if they change
+		// the light of a tile that can be seen, as every wall, floor, ceiling and entity drawn is lit by a tile that is potentially visible.
+		final boolean hasCameraMoved = (camera.x != lastCameraX) || (camera.y != lastCameraY) || (camera.z != lastCameraZ) || (camera.angle != lastCameraAngle);
+		shouldSaveWorldLayer = !hasCameraMoved;
+		if((level != lastLevel) || (renderPane != lastRenderPane) || (level.usePortalRenderer != lastUsePortalRenderer) || (level.entities.size() != entityCount))
+			return redrawAll();
+		if((level.lightMap.version != lastLightVersion) && isLightChangeVisible(level, camera))
+			return redrawAll();
+		if(hasCameraMoved || !hasSavedWorldLayer)
+			return redrawAll();
+		
+		// With the camera still, only the entities that have moved or changed sprite need drawing again, both where they were and where they are
+		dirtyLeft = dirtyTop = Integer.MAX_VALUE;
+		dirtyRight = dirtyBottom = Integer.MIN_VALUE;
+		for(int i = 0; i < entityCount; i++) {
+			final Entity entity = level.entities.get(i);
+			if((entity.x == entityX[i]) && (entity.y == entityY[i]) && (entity.z == entityZ[i]) && (entity.sprite == entitySprites[i]))
+				continue;
+			
+			addDirtyArea(entityBounds[i * 4], entityBounds[i * 4 + 1], entityBounds[i * 4 + 2], entityBounds[i * 4 + 3]);
+			if(projectVisibleEntity(level, camera, renderPane, entity))
+				addDirtyArea(renderPane.projectedLeft, renderPane.projectedTop, renderPane.projectedRight, renderPane.projectedBottom);
+		}
+		
+		// Clamp the dirty area to the screen, as changes entirely off screen don't need anything drawing
+		dirtyLeft = Math.max(0, dirtyLeft);
+		dirtyTop = Math.max(0, dirtyTop);
+		dirtyRight = Math.min(renderPane.width, dirtyRight);
+		dirtyBottom = Math.min(renderPane.height, dirtyBottom);
+		return ((dirtyLeft < dirtyRight) && (dirtyTop < dirtyBottom)) ? Change.SPRITES : Change.NONE;
+	}
+	
+	public void recordFrame(Level level, Camera camera, RenderPane3D renderPane) {
+		lastLevel = level;
+		lastRenderPane = renderPane;
+		lastUsePortalRenderer = level.usePortalRenderer;
+		lastLightVersion = level.lightMap.version;
+		level.lightMap.clearChangedArea();
+		lastCameraX = camera.x;
+		lastCameraY = camera.y;
+		lastCameraZ = camera.z;
+		lastCameraAngle = camera.angle;
+		
+		entityCount = level.entities.size();
+		if(entityCount > entityX.length) {
+			final int capacity = Math.max(entityCount, entityX.length * 2);
+			entityX = Arrays.copyOf(entityX, capacity);
+			entityY = Arrays.copyOf(entityY, capacity);
+			entityZ = Arrays.copyOf(entityZ, capacity);
+			entitySprites = Arrays.copyOf(entitySprites, capacity);
+			entityBounds = Arrays.copyOf(entityBounds, capacity * 4);
+		}
+		
+		for(int i = 0; i < entityCount; i++) {
+			final Entity entity = level.entities.get(i);
+			entityX[i] = entity.x;
+			entityY[i] = entity.y;
+			entityZ[i] = entity.z;
+			entitySprites[i] = entity.sprite;
+			
+			if(projectVisibleEntity(level, camera, renderPane, entity)) {
+				entityBounds[i * 4] = renderPane.projectedLeft;
+				entityBounds[i * 4 + 1] = renderPane.projectedTop;
+				entityBounds[i * 4 + 2] = renderPane.projectedRight;
+				entityBounds[i * 4 + 3] = renderPane.projectedBottom;
+			} else {
+				entityBounds[i * 4] = entityBounds[i * 4 + 1] = entityBounds[i * 4 + 2] = entityBounds[i * 4 + 3] = 0;
+			}
+		}
+	}
+	
+	private Change redrawAll() {
+		hasSavedWorldLayer = shouldSaveWorldLayer;
+		return Change.ALL;
+	}
+	
+	private boolean isLightChangeVisible(Level level, Camera camera) {
+		// Only the tiles within the potentially visible set's window around the camera can be seen, so the rest of the changed area is skipped
+		final LightMap lightMap = level.lightMap;
+		final int cameraTileX = (int) Math.floor(camera.x / level.tileSize);
+		final int cameraTileZ = (int) Math.floor(camera.z / level.tileSize);
+		if(!level.visibleSet.hasVisibility(cameraTileX, cameraTileZ))
+			return true;
+		final int minimumTileX = Math.max(lightMap.changedMinimumTileX, cameraTileX - level.visibleSet.radius);
+		final int minimumTileZ = Math.max(lightMap.changedMinimumTileZ, cameraTileZ - level.visibleSet.radius);
+		final int maximumTileX = Math.min(lightMap.changedMaximumTileX, cameraTileX + level.visibleSet.radius);
+		final int maximumTileZ = Math.min(lightMap.changedMaximumTileZ, cameraTileZ + level.visibleSet.radius);
+		for(int tileZ = minimumTileZ; tileZ <= maximumTileZ; tileZ++) {
+			for(int tileX = minimumTileX; tileX <= maximumTileX; tileX++) {
+				if(level.visibleSet.isVisible(cameraTileX, cameraTileZ, tileX, tileZ))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	private boolean projectVisibleEntity(Level level, Camera camera, RenderPane3D renderPane, Entity entity) {
+		// This matches the checks made when drawing entities, so the bounds cover everything that was actually drawn
+		if(!level.isPotentiallyVisible(camera.x, camera.z, entity.x, entity.z))
+			return false;
+		return renderPane.projectEntity(camera, entity);
+	}
+	
+	private void addDirtyArea(int left, int top, int right, int bottom) {
+		if((left >= right) || (top >= bottom))
+			return;
+		dirtyLeft = Math.min(dirtyLeft, left);
+		dirtyTop = Math.min(dirtyTop, top);
+		dirtyRight = Math.max(dirtyRight, right);
+		dirtyBottom = Math.max(dirtyBottom, bottom);
+	}
+	
+}
@@ -0,0 +1,76 @@
+package utils;
+
+public class FrameTimeHistogram {
+
+	// Times are bucketed by their power of two, with each power of two split into 16 linear sub-buckets. This keeps every bucket within ~6% of
+	// the times it holds, while a fixed array of buckets can hold anything from a nanosecond up to centuries without allocating.
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = (1 << SUB_BUCKET_BITS);
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+	private final long[] bucketCounts = new long[BUCKET_COUNT];
+	private long totalCount = 0;
+	private long maxNanoseconds = 0;
+	
+	public void record(long nanoseconds) {
+		if(nanoseconds < 0)
+			nanoseconds = 0;
+		
+		bucketCounts[getBucketIndex(nanoseconds)]++;
+		totalCount++;
+		if(nanoseconds > maxNanoseconds)
+			maxNanoseconds = nanoseconds;
+	}
+	
+	public void clear() {
+		for(int i = 0; i < bucketCounts.length; i++) {
+			bucketCounts[i] = 0;
+		}
+		totalCount = 0;
+		maxNanoseconds = 0;
+	}
+	
+	public void copyTo(FrameTimeHistogram destination) {
+		System.arraycopy(bucketCounts, 0, destination.bucketCounts, 0, bucketCounts.length);
+		destination.totalCount = totalCount;
+		destination.maxNanoseconds = maxNanoseconds;
+	}
+	
+	public long getTotalCount() { return totalCount; }
+	public long getMaxNanoseconds() { return maxNanoseconds; }
+	
+	public long getPercentileNanoseconds(double percentile) {
+		if(totalCount == 0)
+			return 0;
+		
+		// Find the bucket containing the requested rank, and report the top of that bucket (never more than the largest recorded time)
+		final long targetRank = Math.max(1, (long) Math.ceil((percentile / 100.0) * totalCount));
+		long currentRank = 0;
+		for(int i = 0; i < bucketCounts.length; i++) {
+			currentRank += bucketCounts[i];
+			if(currentRank >= targetRank)
+				return Math.min(getBucketUpperBound(i), maxNanoseconds);
+		}
+		return maxNanoseconds;
+	}
+	
+	private static int getBucketIndex(long nanoseconds) {
+		// Small times are stored exactly, one nanosecond per bucket
+		if(nanoseconds < (2 * SUB_BUCKET_COUNT))
+			return (int) nanoseconds;
+		
+		// Larger times keep only their top few bits, with the exponent choosing which group of sub-buckets is used
+		final int exponent = (63 - Long.numberOfLeadingZeros(nanoseconds)) - SUB_BUCKET_BITS;
+		return (exponent << SUB_BUCKET_BITS) + (int) (nanoseconds >>> exponent);
+	}
+	
+	private static long getBucketUpperBound(int bucketIndex) {
+		if(bucketIndex < (2 * SUB_BUCKET_COUNT))
+			return bucketIndex;
+		
+		final int exponent = (bucketIndex - SUB_BUCKET_COUNT) >> SUB_BUCKET_BITS;
+		final long subBucket = bucketIndex - (exponent << SUB_BUCKET_BITS);
+		return ((subBucket + 1) << exponent) - 1;
+	}
+	
+}
@@ -1,7 +1,9 @@
 package utils;
 
+import java.io.File;
 import java.util.ArrayList;
 
+import graphics.Camera;
 import graphics.Entity;
 import graphics.RenderPane3D;
 import graphics.Sprite;
@@ -13,41 +15,105 @@ import ui.InputHandler;
 
 public class Level {
 
+	// Wall heights were worked out for a screen this many pixels high, so they are scaled to the height of the render pane being drawn to, the
+	// same as the floor, ceiling and entities are
+	private static final float REFERENCE_SCREEN_HEIGHT = 240;
+	
 	public int tileSize = 16;
 	
+	public final String name;
 	public final Sprite tileMap;
 	public final Sprite entityMap;
 
 	public final Player player;
 	public final ArrayList<Entity> entities = new ArrayList<Entity>();
+	public final PotentiallyVisibleSet visibleSet;
+	// Walls can be drawn by either the ray caster or the portal renderer, which can be switched between at any time
+	public final PortalRenderer portalRenderer;
+	public boolean usePortalRenderer = false;
+	public final LightMap lightMap;
+	
+	// The number of seconds the level has been updated for, used in place of the system clock so that replays behave identically
+	public double elapsedTime = 0;
+	
+	public static boolean exists(String levelName) {
+		return new File("assets/levels/" + levelName + "/tile_map.png").isFile() && new File("assets/levels/" + levelName + "/entity_map.png").isFile();
+	}
 	
 	public Level(String levelName) {
+		name = levelName;
 		tileMap = new Sprite("assets/levels/" + levelName + "/tile_map.png");
 		entityMap = new Sprite("assets/levels/" + levelName + "/entity_map.png");
 
 		player = new Player(this, 0, 0, 0);
+		visibleSet = new PotentiallyVisibleSet(this, player.camera.maxRenderDistance);
+		portalRenderer = new PortalRenderer(this);
+		lightMap = new LightMap(this);
+		resetEntities();
+		resetPlayer();
+	}
+	
+	public Level(Level template) {
+		// Start a fresh copy of another level, sharing everything that never changes while the level is played (the maps, the potentially
+		// visible set and the portal renderer's sectors), so that many copies of a level can be run without loading and building them again
+		name = template.name;
+		tileSize = template.tileSize;
+		tileMap = template.tileMap;
+		entityMap = template.entityMap;
+		
+		player = new Player(this, 0, 0, 0);
+		visibleSet = template.visibleSet;
+		portalRenderer = template.portalRenderer;
+		lightMap = new LightMap(template.lightMap);
 		resetEntities();
 		resetPlayer();
 	}
 
 	public void update(InputHandler inputHandler, float delta) {
+		elapsedTime += delta;
+		
 		// Update the player
 		player.update(inputHandler, delta);
 		
-		// Update any mobs in the level
-		for(Entity currentEntity : entities) {
+		// Update any mobs in the level (indexing the list directly, as an iterator would be allocated every tick)
+		for(int i = 0; i < entities.size(); i++) {
+			final Entity currentEntity = entities.get(i);
+			// Mobs that can't possibly be seen by the player are left inactive until they can be
+			if(!isPotentiallyVisible(player.camera.x, player.camera.z, currentEntity.x, currentEntity.z)) continue;
 			if(currentEntity instanceof Mob) ((Mob) currentEntity).update(inputHandler, delta);
 		}
+		
+		// Move any lights carried by the mobs to where the mobs now are
+		lightMap.update(this);
 	}
 	
-	public void drawLevel(RenderPane3D renderPane) {
-		drawWallsFloorAndCeiling(renderPane);
-		
-		for(Entity currentEntity : entities) {
-			renderPane.drawEntity(this, currentEntity);
+	// Drawing only reads from the level and the camera, and only writes to the render pane, so several cameras can be drawn into their own
+	// render panes at the same time
+	public void drawLevel(RenderPane3D renderPane, Camera camera) {
+		drawWalls(renderPane, camera);
+		drawFloorAndCeiling(renderPane, camera);
+		drawEntities(renderPane, camera);
+	}
+	
+	public void drawEntities(RenderPane3D renderPane, Camera camera) {
+		for(int i = 0; i < entities.size(); i++) {
+			final Entity currentEntity = entities.get(i);
+			// Skip any entities that are hidden behind walls from the camera's current tile
+			if(!isPotentiallyVisible(camera.x, camera.z, currentEntity.x, currentEntity.z)) continue;
+			renderPane.drawEntity(camera, currentEntity, getLight(currentEntity.x, currentEntity.z));
 		}
 	}
+	
+	public boolean isPotentiallyVisible(float fromX, float fromZ, float toX, float toZ) {
+		final int fromTileX = (int) Math.floor(fromX / tileSize);
+		final int fromTileZ = (int) Math.floor(fromZ / tileSize);
+		final int toTileX = (int) Math.floor(toX / tileSize);
+		final int toTileZ = (int) Math.floor(toZ / tileSize);
+		return visibleSet.isVisible(fromTileX, fromTileZ, toTileX, toTileZ);
+	}
 
+	public int getLight(float x, float z) { return lightMap.getLight((int) Math.floor(x / tileSize), (int) Math.floor(z / tileSize)); }
+	
 	public void resetPlayer() {
 		// Iterate through the entity map to find the player's original location
 		for(int i = 0; i < entityMap.pixels.length; i++) {
@@ -100,23 +166,41 @@ public class Level {
 		return Wall.getWall(tileMap.pixels[levelX + levelZ * tileMap.width]);
 	}
 	
-	private void drawWallsFloorAndCeiling(final RenderPane3D renderPane) {
-		final float cameraTileX = player.camera.x / tileSize;
-		final float cameraTileZ = player.camera.z / tileSize;
+	public void drawWalls(final RenderPane3D renderPane, final Camera camera) {
+		renderPane.updateProjection(camera);
 		
-        for(int screenX = 0; screenX < renderPane.width; screenX++) {
-        	// Calculate the angle of the ray being fired relative to the center of the screen (-FOV/2 to FOV/2)
-        	float horizontalAngle = ((1.0f * screenX - (renderPane.width / 2)) / renderPane.width);
-        	// Calculate the angle of the ray being fired (adjusted for the camera's angle offset)
-        	float rayAngle = player.camera.angle + horizontalAngle;
-        	
-            // Draw the floor and ceiling for the current screen column
-        	drawWallColumn(renderPane, screenX, cameraTileX, cameraTileZ, horizontalAngle, rayAngle);
-        	drawFloorAndCeilingColumn(renderPane, screenX, cameraTileX, cameraTileZ, horizontalAngle, rayAngle);
-        }
-    }
+		// The portal renderer can't draw from inside a wall or outside the level, so the ray caster is used whenever it can't
+		if(usePortalRenderer && portalRenderer.drawWalls(this, renderPane, camera))
+			return;
+		
+		final float cameraTileX = camera.x / tileSize;
+		final float cameraTileZ = camera.z / tileSize;
+		final float cameraAngleSin = renderPane.cameraAngleSin;
+		final float cameraAngleCos = renderPane.cameraAngleCos;
+		
+		for(int screenX = 0; screenX < renderPane.width; screenX++) {
+			// Find the direction of the ray being fired by adding the column's angle (relative to the center of the screen) to the camera's angle,
+			// using the sum of angles identities so that no trigonometry is needed per column
+			final float rayX = (cameraAngleSin * renderPane.columnAngleCoses[screenX]) + (cameraAngleCos * renderPane.columnAngleSins[screenX]);
+			final float rayZ = (cameraAngleCos * renderPane.columnAngleCoses[screenX]) - (cameraAngleSin * renderPane.columnAngleSins[screenX]);
+			
+			// Draw the wall for the current screen column
+			drawWallColumn(renderPane, camera, screenX, cameraTileX, cameraTileZ, rayX, rayZ);
+		}
+	}
 	
-	private void drawWallColumn(final RenderPane3D renderPane, final int screenX, final float cameraTileX, final float cameraTileZ, final float horizontalAngle, final float rayAngle) {
+	public void drawFloorAndCeiling(final RenderPane3D renderPane, final Camera camera) {
+		final float cameraTileX = camera.x / tileSize;
+		final float cameraTileZ = camera.z / tileSize;
+		renderPane.updateProjection(camera);
+		
+		for(int screenX = 0; screenX < renderPane.width; screenX++) {
+			// Draw the floor and ceiling for the current screen column
+			drawFloorAndCeilingColumn(renderPane, camera, screenX, cameraTileX, cameraTileZ);
+		}
+	}
+	
+	private void drawWallColumn(final RenderPane3D renderPane, final Camera camera, final int screenX, final float cameraTileX, final float cameraTileZ, final float rayX, final float rayZ) {
 		// This constant controls how accurate the ray distance is by determining how much a ray moves before wall collision is checked
 		final float rayPrecision = 0.001f;
 		final int maximumRayIncrement = (int) (16 / rayPrecision);
@@ -124,18 +208,22 @@ public class Level {
 		// Work out the current position of the ray being cast to find walls, and also how much it should travel in each direction based on it's angle
     	float currentRayTileX = cameraTileX;
     	float currentRayTileZ = cameraTileZ;
-    	final float rayXDelta = (float) Math.sin(rayAngle) * rayPrecision;
-    	final float rayZDelta = (float) Math.cos(rayAngle) * rayPrecision;
+    	final float rayXDelta = rayX * rayPrecision;
+    	final float rayZDelta = rayZ * rayPrecision;
     	
     	// Search for a wall, moving one axis at a time to avoid clipped diagonally through walls
     	Wall collidedWall = null;
     	float wallSpriteHorizontalPercentage = 0;
+    	// Walls are lit by the tile the ray was in just before it hit the wall, which is the tile in front of the side of the wall that was hit
+    	int litTileX = 0, litTileZ = 0;
     	for(int i = 0; i < maximumRayIncrement; i++) {
     		// Step forwards on the X axis and check for a collision on the left and right of a wall
     		currentRayTileX += rayXDelta;
     		collidedWall = getLevelWall((int) currentRayTileX, (int) currentRayTileZ);
     		if(collidedWall != null) {
     			wallSpriteHorizontalPercentage = currentRayTileZ % 1;
+    			litTileX = (int) (currentRayTileX - rayXDelta);
+    			litTileZ = (int) currentRayTileZ;
     			break;
     		}
     		
@@ -144,6 +232,8 @@ public class Level {
     		collidedWall = getLevelWall((int) currentRayTileX, (int) currentRayTileZ);
     		if(collidedWall != null) {
     			wallSpriteHorizontalPercentage = currentRayTileX % 1;
+    			litTileX = (int) currentRayTileX;
+    			litTileZ = (int) (currentRayTileZ - rayZDelta);
     			break;
     		}
 
@@ -153,72 +243,66 @@ public class Level {
         
         // If a wall was found, calculate how far away it is and draw it to the screen
         if(collidedWall != null) {
-        	int wallSpriteX = (int) (wallSpriteHorizontalPercentage * collidedWall.sprite.width);
-
-        	// Find the distance from the camera to the wall
+        	// Find the distance from the camera to the wall, correcting for the fishbowl effect
         	final float rayTileXDistanceSquared = (currentRayTileX - cameraTileX) * (currentRayTileX - cameraTileX);
         	final float rayTileZDistanceSquared = (currentRayTileZ - cameraTileZ) * (currentRayTileZ - cameraTileZ);
-        	float wallTileDistance = (float) (Math.sqrt(rayTileXDistanceSquared + rayTileZDistanceSquared) * Math.cos(horizontalAngle));
-        	final float wallDistance = wallTileDistance * tileSize;
-
-        	// Calculate the wall height based on the wall's distance from the camera
-        	final float actualScreenWallHeight = (16 * tileSize) / wallTileDistance;
-        	final int screenWallTop = (int) Math.floor((renderPane.height / 2) - (actualScreenWallHeight / 2));
-        	final int screenWallBottom = (int) Math.ceil((renderPane.height / 2) + (actualScreenWallHeight / 2));
-        	final int screenWallHeight = screenWallBottom - screenWallTop;
+        	float wallTileDistance = (float) (Math.sqrt(rayTileXDistanceSquared + rayTileZDistanceSquared) * renderPane.columnAngleCoses[screenX]);
         	
-        	// Iterate through each row of the wall and draw the sprite at each point
-        	for(int screenY = Math.max(0, screenWallTop); screenY < Math.min(renderPane.height, screenWallBottom); screenY++) {
-        		final float wallSpriteVerticalPercentage = (screenY - screenWallTop) / (1.0f * screenWallHeight);
-        		final int wallSpriteY = (int) (wallSpriteVerticalPercentage * collidedWall.sprite.height);
-
-        		final int colour = collidedWall.sprite.pixels[wallSpriteX + wallSpriteY * collidedWall.sprite.width];
-        		renderPane.setPixel(screenX, screenY, wallDistance, colour);
-        	}
+        	drawWallSlice(renderPane, camera, screenX, collidedWall, wallSpriteHorizontalPercentage, wallTileDistance, lightMap.getLight(litTileX, litTileZ));
         }
         
 	}
 	
-	private void drawFloorAndCeilingColumn(final RenderPane3D renderPane, final int screenX, final float cameraTileX, final float cameraTileZ, final float horizontalAngle, final float rayAngle) {
-		final float cameraAngleSin = (float) Math.sin(player.camera.angle);
-		final float cameraAngleCos = (float) Math.cos(player.camera.angle);
-		final float horizontalAngleSin = (float) Math.sin(horizontalAngle);
-		final float horizontalAngleCos = (float) Math.cos(horizontalAngle);
+	void drawWallSlice(final RenderPane3D renderPane, final Camera camera, final int screenX, final Wall wall, final float wallSpriteHorizontalPercentage, final float wallTileDistance, final int light) {
+		final int wallSpriteX = (int) (wallSpriteHorizontalPercentage * wall.sprite.width);
+		final float wallDistance = wallTileDistance * tileSize;
+		
+		// Calculate the wall height based on the wall's distance from the camera
+		final float actualScreenWallHeight = ((16 * tileSize) / wallTileDistance) * (renderPane.height / REFERENCE_SCREEN_HEIGHT) * renderPane.projectionZoom;
+		final int screenWallTop = (int) Math.floor((renderPane.height / 2) - (actualScreenWallHeight / 2));
+		final int screenWallBottom = (int) Math.ceil((renderPane.height / 2) + (actualScreenWallHeight / 2));
+		final int screenWallHeight = screenWallBottom - screenWallTop;
+		
+		// Iterate through each row of the wall and draw the sprite at each point
+		for(int screenY = Math.max(0, screenWallTop); screenY < Math.min(renderPane.height, screenWallBottom); screenY++) {
+			final float wallSpriteVerticalPercentage = (screenY - screenWallTop) / (1.0f * screenWallHeight);
+			final int wallSpriteY = (int) (wallSpriteVerticalPercentage * wall.sprite.height);
+			
+			renderPane.setTexel(screenX, screenY, wallDistance, wall.sprite, wallSpriteX + wallSpriteY * wall.sprite.width, light);
+		}
+	}
+	
+	private void drawFloorAndCeilingColumn(final RenderPane3D renderPane, final Camera camera, final int screenX, final float cameraTileX, final float cameraTileZ) {
+		final float cameraAngleSin = renderPane.cameraAngleSin;
+		final float cameraAngleCos = renderPane.cameraAngleCos;
+		final float horizontalAngleTan = renderPane.columnAngleSins[screenX] / renderPane.columnAngleCoses[screenX];
 		
 		final int halfScreenHeight = (renderPane.height / 2);
 		
 		for(int screenY = 0; screenY < renderPane.height; screenY++) {
-			// Calculate the vertical angle between the ray being projected to the floor/ceiling based on how far we are vertically through the column.
-			// We know that: tan(verticalAngle) = relative_screen_y / min_render_distance
-			// Using the small angle approximation that tan(angle) = angle: verticalAngle = relative_screen_y / min_render_distance
-			final float relativeScreenY = (1.0f * screenY - halfScreenHeight) / renderPane.height;
-			final float verticalAngle = relativeScreenY / player.camera.minRenderDistance;
-
 			// Determine whether the current pixel is for a floor ceiling based on whether it's the top or bottom half of the screen
-			final boolean isFloor = (relativeScreenY >= 0);
-			// Calculate the Z distance to the floor/ceiling tile for the current pixel by using the wall height and the vertical angle of the ray.
-			// We know: z_distance = wall_height / tan(verticalAngle)
-			// Using the small angle approximation that tan(angle) = angle: z_distance = wall_height / verticalAngle
-			float floorZDelta = isFloor ? (5 / verticalAngle) : -(5 / verticalAngle);
+			final boolean isFloor = (screenY >= halfScreenHeight);
+			// Look up the Z distance to the floor/ceiling tile for the current row, which the render pane works out from the row's vertical angle
+			final float floorZDelta = renderPane.rowFloorDistances[screenY];
 			// Calculate the X distance to the floor/ceiling tile for the current pixel based on the distance and the current ray angle relative to the center of the camera.
-			// We know: x_distance = z_distance * sin(horizontalAngle)
-			float floorXDelta = floorZDelta * horizontalAngleSin;
-			// Correct for the fishbowl effect
-			floorZDelta *= horizontalAngleCos;
+			// Every pixel in a row is the same distance in front of the camera (just as walls are), which keeps the floor flat against the walls.
+			// We know: x_distance = z_distance * tan(horizontalAngle)
+			final float floorXDelta = floorZDelta * horizontalAngleTan;
 			
 			// Rotate the relative tile position based on the camera's current angle
 			final float worldTileX = (float) (floorXDelta * cameraAngleCos + floorZDelta * cameraAngleSin) + cameraTileX;
 			final float worldTileZ = (float) (floorZDelta * cameraAngleCos - floorXDelta * cameraAngleSin) + cameraTileZ;
 
 			// Get the tile for the current world position
-			final Tile currentTile = isFloor ? getLevelFloorTile((int) Math.floor(worldTileX), (int) Math.floor(worldTileZ)) : getLevelCeilingTile((int) Math.floor(worldTileX), (int) Math.floor(worldTileZ)); 
+			final int levelX = (int) Math.floor(worldTileX);
+			final int levelZ = (int) Math.floor(worldTileZ);
+			final Tile currentTile = isFloor ? getLevelFloorTile(levelX, levelZ) : getLevelCeilingTile(levelX, levelZ);
 			if(currentTile != null) {
 				// Based on how far through the tile we are calculate the sprite position for the floor/ceiling tile
 				final int spriteX = (int) ((worldTileX % 1) * currentTile.sprite.width);
 				final int spriteZ = (int) ((worldTileZ % 1) * currentTile.sprite.height);
 				
-				final int colour = currentTile.sprite.pixels[spriteX + spriteZ * currentTile.sprite.width];
-				renderPane.setPixel(screenX, screenY, floorZDelta * tileSize, colour);
+				renderPane.setTexel(screenX, screenY, floorZDelta * tileSize, currentTile.sprite, spriteX + spriteZ * currentTile.sprite.width, lightMap.getLight(levelX, levelZ));
 			}
 		}
 	}
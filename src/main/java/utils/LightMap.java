@@ -0,0 +1,188 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import graphics.Entity;
+
+public class LightMap {
+
+	public static final int FULL_BRIGHT = 255;
+	// How bright anywhere that no light reaches is, in levels that have lights
+	public static final int AMBIENT_LIGHT = 96;
+
+	// White pixels in the entity map are lights, which are baked into the light map when the level is loaded
+	private static final int STATIC_LIGHT_COLOUR = 0xffffffff;
+	private static final float STATIC_LIGHT_RADIUS = 7;
+	private static final int STATIC_LIGHT_INTENSITY = 255;
+
+	public final int width, height;
+	// Levels without any lights in their entity map are drawn at full brightness everywhere
+	public final boolean isLit;
+	// Counts every change to the light map, so that anything drawn from it can tell when it is out of date
+	public int version = 0;
+	// The tiles touched by those changes since clearChangedArea was last called, so that anything drawn from the light map can tell whether
+	// the changes reach it. The area is empty while the minimum is above the maximum.
+	public int changedMinimumTileX, changedMinimumTileZ, changedMaximumTileX, changedMaximumTileZ;
+
+	// The static light and which tiles block light never change while the level is played, so copies of a level share them. Each tile's light
+	// level is the static light plus the light from every dynamic light that reaches it.
+	private final boolean[] solidTiles;
+	private final int[] staticLight;
+	private final int[] dynamicLight;
+	private final ArrayList<DynamicLight> appliedLights = new ArrayList<DynamicLight>();
+
+	public LightMap(Level level) {
+		final long bakeStartTime = System.currentTimeMillis();
+		width = level.tileMap.width;
+		height = level.tileMap.height;
+		solidTiles = new boolean[width * height];
+		for(int i = 0; i < solidTiles.length; i++) {
+			solidTiles[i] = (Wall.getWall(level.tileMap.pixels[i]) != null);
+		}
+		staticLight = new int[width * height];
+		dynamicLight = new int[width * height];
+		Arrays.fill(staticLight, AMBIENT_LIGHT);
+		clearChangedArea();
+
+		// Place each light the same way as the entities are placed in Level.resetEntities
+		boolean hasLights = false;
+		for(int y = 0; y < level.entityMap.height; y++) {
+			for(int x = 0; x < level.entityMap.width; x++) {
+				if(level.entityMap.pixels[x + y * level.entityMap.width] != STATIC_LIGHT_COLOUR)
+					continue;
+				final float lightTileX = (x * level.tileSize + 16) / (float) level.tileSize;
+				final float lightTileZ = (y * level.tileSize - 16) / (float) level.tileSize;
+				addLight(staticLight, lightTileX, lightTileZ, STATIC_LIGHT_RADIUS, STATIC_LIGHT_INTENSITY, 1);
+				hasLights = true;
+			}
+		}
+		isLit = hasLights;
+
+		if(isLit) System.out.println("Baked light map in " + (System.currentTimeMillis() - bakeStartTime) + "ms");
+	}
+
+	public LightMap(LightMap template) {
+		width = template.width;
+		height = template.height;
+		isLit = template.isLit;
+		solidTiles = template.solidTiles;
+		staticLight = template.staticLight;
+		dynamicLight = new int[width * height];
+		clearChangedArea();
+	}
+	
+	public void clearChangedArea() {
+		changedMinimumTileX = changedMinimumTileZ = Integer.MAX_VALUE;
+		changedMaximumTileX = changedMaximumTileZ = Integer.MIN_VALUE;
+	}
+
+	public int getLight(int tileX, int tileZ) {
+		if(!isLit)
+			return FULL_BRIGHT;
+		if((tileX < 0) || (tileZ < 0) || (tileX >= width) || (tileZ >= height))
+			return AMBIENT_LIGHT;
+		final int tileIndex = tileX + tileZ * width;
+		return Math.min(FULL_BRIGHT, staticLight[tileIndex] + dynamicLight[tileIndex]);
+	}
+
+	public void update(Level level) {
+		if(!isLit)
+			return;
+
+		// Only move the lights that have actually changed, taking away their old light and adding their new light, so that just the tiles
+		// around them are touched
+		for(int i = 0; i < appliedLights.size(); i++) {
+			appliedLights.get(i).isSeen = false;
+		}
+		for(int i = 0; i < level.entities.size(); i++) {
+			final Entity entity = level.entities.get(i);
+			final DynamicLight light = entity.light;
+			if(light == null)
+				continue;
+			light.isSeen = true;
+
+			final float lightTileX = entity.x / level.tileSize;
+			final float lightTileZ = entity.z / level.tileSize;
+			if(light.isApplied) {
+				if((light.appliedTileX == lightTileX) && (light.appliedTileZ == lightTileZ) && (light.appliedRadius == light.radius) && (light.appliedIntensity == light.intensity))
+					continue;
+				addLight(dynamicLight, light.appliedTileX, light.appliedTileZ, light.appliedRadius, light.appliedIntensity, -1);
+			} else {
+				appliedLights.add(light);
+			}
+
+			light.isApplied = true;
+			light.appliedTileX = lightTileX;
+			light.appliedTileZ = lightTileZ;
+			light.appliedRadius = light.radius;
+			light.appliedIntensity = light.intensity;
+			addLight(dynamicLight, lightTileX, lightTileZ, light.radius, light.intensity, 1);
+			version++;
+		}
+
+		// Take away the light of anything that has left the level
+		for(int i = appliedLights.size() - 1; i >= 0; i--) {
+			final DynamicLight light = appliedLights.get(i);
+			if(light.isSeen)
+				continue;
+			addLight(dynamicLight, light.appliedTileX, light.appliedTileZ, light.appliedRadius, light.appliedIntensity, -1);
+			light.isApplied = false;
+			appliedLights.remove(i);
+			version++;
+		}
+	}
+
+	private void addLight(int[] lightLevels, float lightTileX, float lightTileZ, float radius, int intensity, int sign) {
+		// Light every tile whose centre is inside the radius and can be reached from the light without passing through a wall. The amount added
+		// only depends on the arguments, so calling this again with a negative sign takes away exactly what was added.
+		final int minimumTileX = Math.max(0, (int) Math.floor(lightTileX - radius));
+		final int minimumTileZ = Math.max(0, (int) Math.floor(lightTileZ - radius));
+		final int maximumTileX = Math.min(width - 1, (int) Math.floor(lightTileX + radius));
+		final int maximumTileZ = Math.min(height - 1, (int) Math.floor(lightTileZ + radius));
+		changedMinimumTileX = Math.min(changedMinimumTileX, minimumTileX);
+		changedMinimumTileZ = Math.min(changedMinimumTileZ, minimumTileZ);
+		changedMaximumTileX = Math.max(changedMaximumTileX, maximumTileX);
+		changedMaximumTileZ = Math.max(changedMaximumTileZ, maximumTileZ);
+		for(int tileZ = minimumTileZ; tileZ <= maximumTileZ; tileZ++) {
+			for(int tileX = minimumTileX; tileX <= maximumTileX; tileX++) {
+				final float xDistance = (tileX + 0.5f) - lightTileX;
+				final float zDistance = (tileZ + 0.5f) - lightTileZ;
+				final float distance = (float) Math.sqrt(xDistance * xDistance + zDistance * zDistance);
+				if((distance >= radius) || !canLightReach(lightTileX, lightTileZ, tileX, tileZ))
+					continue;
+				lightLevels[tileX + tileZ * width] += sign * (int) (intensity * (1 - (distance / radius)));
+			}
+		}
+	}
+
+	private boolean canLightReach(float lightTileX, float lightTileZ, int toTileX, int toTileZ) {
+		// Step through each tile between the light and the centre of the target tile (one tile boundary at a time), stopping at the first wall
+		final float rayX = (toTileX + 0.5f) - lightTileX;
+		final float rayZ = (toTileZ + 0.5f) - lightTileZ;
+		int currentTileX = (int) Math.floor(lightTileX);
+		int currentTileZ = (int) Math.floor(lightTileZ);
+		final int tileXStep = (rayX >= 0) ? 1 : -1;
+		final int tileZStep = (rayZ >= 0) ? 1 : -1;
+		final float rayXDeltaPerTile = (rayX == 0) ? Float.MAX_VALUE : Math.abs(1 / rayX);
+		final float rayZDeltaPerTile = (rayZ == 0) ? Float.MAX_VALUE : Math.abs(1 / rayZ);
+		float rayXDistanceToBoundary = ((rayX >= 0) ? (currentTileX + 1 - lightTileX) : (lightTileX - currentTileX)) * rayXDeltaPerTile;
+		float rayZDistanceToBoundary = ((rayZ >= 0) ? (currentTileZ + 1 - lightTileZ) : (lightTileZ - currentTileZ)) * rayZDeltaPerTile;
+
+		final int stepCount = Math.abs(toTileX - currentTileX) + Math.abs(toTileZ - currentTileZ);
+		for(int step = 0; step < stepCount; step++) {
+			if((currentTileX < 0) || (currentTileZ < 0) || (currentTileX >= width) || (currentTileZ >= height) || solidTiles[currentTileX + currentTileZ * width])
+				return false;
+
+			if(rayXDistanceToBoundary < rayZDistanceToBoundary) {
+				currentTileX += tileXStep;
+				rayXDistanceToBoundary += rayXDeltaPerTile;
+			} else {
+				currentTileZ += tileZStep;
+				rayZDistanceToBoundary += rayZDeltaPerTile;
+			}
+		}
+		return true;
+	}
+
+}
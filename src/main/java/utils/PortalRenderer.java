@@ -0,0 +1,269 @@
+package utils;
+
+import java.util.Arrays;
+
+import graphics.Camera;
+import graphics.RenderPane3D;
+import graphics.Sprite;
+
+public class PortalRenderer {
+
+	// The ray caster stops looking for walls after this many tiles, so the portal renderer does the same to produce the same frame
+	private static final float MAX_WALL_TILE_DISTANCE = 16;
+	private static final int MAX_PORTAL_DEPTH = 256;
+	private static final int SEGMENT_VOID = -1;
+	
+	// Only the level's tile map is kept, as it is shared between copies of a level. Everything that changes as the level is played (such as its
+	// light map) is taken from the level being drawn.
+	private final Sprite tileMap;
+	public final int sectorCount;
+	public final int segmentCount;
+	
+	// Each sector is a rectangle of open tiles. Sectors are convex, so looking out from inside one (or through a portal into one), each screen
+	// column sees exactly one of its edges.
+	private final int[] tileSectors;
+	private final int[] sectorFirstSegments;
+	private final int[] sectorSegmentCounts;
+	
+	// Each edge of a sector is split into segments, each of which either leads into a neighbouring sector (a portal), is a solid wall, or is the
+	// edge of the level. Runs of collinear wall tiles are merged into one long segment. Positions are in tiles.
+	private final int[] segmentStartX, segmentStartZ, segmentEndX, segmentEndZ;
+	private final int[] segmentNormalX, segmentNormalZ;
+	private final int[] segmentNeighbours;
+	private final Wall[] segmentWalls;
+	
+	public PortalRenderer(Level level) {
+		final long buildStartTime = System.currentTimeMillis();
+		tileMap = level.tileMap;
+		
+		final int width = tileMap.width;
+		final int height = tileMap.height;
+		
+		// Greedily cover the open tiles with rectangles: grow each one as wide as possible, then as tall as possible while every row still fits
+		tileSectors = new int[width * height];
+		Arrays.fill(tileSectors, -1);
+		int[] sectorBounds = new int[64 * 4];
+		int sectors = 0;
+		for(int tileZ = 0; tileZ < height; tileZ++) {
+			for(int tileX = 0; tileX < width; tileX++) {
+				if(!isAvailable(tileX, tileZ))
+					continue;
+				
+				int sectorWidth = 1;
+				while(isAvailable(tileX + sectorWidth, tileZ)) sectorWidth++;
+				int sectorHeight = 1;
+				while(isRowAvailable(tileX, tileZ + sectorHeight, sectorWidth)) sectorHeight++;
+				
+				for(int z = tileZ; z < tileZ + sectorHeight; z++) {
+					for(int x = tileX; x < tileX + sectorWidth; x++) {
+						tileSectors[x + z * width] = sectors;
+					}
+				}
+				if(((sectors + 1) * 4) > sectorBounds.length) sectorBounds = Arrays.copyOf(sectorBounds, sectorBounds.length * 2);
+				sectorBounds[sectors * 4] = tileX;
+				sectorBounds[sectors * 4 + 1] = tileZ;
+				sectorBounds[sectors * 4 + 2] = tileX + sectorWidth;
+				sectorBounds[sectors * 4 + 3] = tileZ + sectorHeight;
+				sectors++;
+			}
+		}
+		sectorCount = sectors;
+		
+		// Walk around the edges of each sector, starting a new segment whenever what lies on the other side of the edge changes
+		final SegmentBuilder segments = new SegmentBuilder();
+		sectorFirstSegments = new int[sectorCount];
+		sectorSegmentCounts = new int[sectorCount];
+		for(int sector = 0; sector < sectorCount; sector++) {
+			final int minX = sectorBounds[sector * 4], minZ = sectorBounds[sector * 4 + 1];
+			final int maxX = sectorBounds[sector * 4 + 2], maxZ = sectorBounds[sector * 4 + 3];
+			sectorFirstSegments[sector] = segments.count;
+			addEdgeSegments(segments, minX, minZ, maxX, minZ, 0, -1);
+			addEdgeSegments(segments, minX, maxZ, maxX, maxZ, 0, 1);
+			addEdgeSegments(segments, minX, minZ, minX, maxZ, -1, 0);
+			addEdgeSegments(segments, maxX, minZ, maxX, maxZ, 1, 0);
+			sectorSegmentCounts[sector] = segments.count - sectorFirstSegments[sector];
+		}
+		
+		segmentCount = segments.count;
+		segmentStartX = Arrays.copyOf(segments.startX, segmentCount);
+		segmentStartZ = Arrays.copyOf(segments.startZ, segmentCount);
+		segmentEndX = Arrays.copyOf(segments.endX, segmentCount);
+		segmentEndZ = Arrays.copyOf(segments.endZ, segmentCount);
+		segmentNormalX = Arrays.copyOf(segments.normalX, segmentCount);
+		segmentNormalZ = Arrays.copyOf(segments.normalZ, segmentCount);
+		segmentNeighbours = Arrays.copyOf(segments.neighbours, segmentCount);
+		segmentWalls = Arrays.copyOf(segments.walls, segmentCount);
+		
+		System.out.println("Built " + sectorCount + " sectors with " + segmentCount + " segments in " + (System.currentTimeMillis() - buildStartTime) + "ms");
+	}
+	
+	public boolean drawWalls(Level level, RenderPane3D renderPane, Camera camera) {
+		// Find the sector the camera is in. From inside a wall or outside the level there is nowhere to start from, so leave it to the ray caster.
+		final float cameraTileX = camera.x / level.tileSize;
+		final float cameraTileZ = camera.z / level.tileSize;
+		final int cameraSectorX = (int) Math.floor(cameraTileX);
+		final int cameraSectorZ = (int) Math.floor(cameraTileZ);
+		if((cameraSectorX < 0) || (cameraSectorZ < 0) || (cameraSectorX >= tileMap.width) || (cameraSectorZ >= tileMap.height))
+			return false;
+		final int cameraSector = tileSectors[cameraSectorX + cameraSectorZ * tileMap.width];
+		if(cameraSector < 0)
+			return false;
+		
+		drawSector(level, renderPane, camera, cameraTileX, cameraTileZ, cameraSector, 0, renderPane.width, 0);
+		return true;
+	}
+	
+	private void drawSector(Level level, RenderPane3D renderPane, Camera camera, float cameraTileX, float cameraTileZ, int sector, int windowLeft, int windowRight, int depth) {
+		final float cameraSin = renderPane.cameraAngleSin;
+		final float cameraCos = renderPane.cameraAngleCos;
+		
+		final int lastSegment = sectorFirstSegments[sector] + sectorSegmentCounts[sector];
+		for(int segment = sectorFirstSegments[sector]; segment < lastSegment; segment++) {
+			// Only the edges the camera is looking out through can be seen. The others face towards the camera, and are hidden by the sector itself.
+			final float toCameraX = cameraTileX - segmentStartX[segment];
+			final float toCameraZ = cameraTileZ - segmentStartZ[segment];
+			if(((toCameraX * segmentNormalX[segment]) + (toCameraZ * segmentNormalZ[segment])) >= 0)
+				continue;
+			
+			// Move the ends of the segment into camera space, where depth is the distance ahead of the camera and side is the distance to the right
+			final float startRelativeX = segmentStartX[segment] - cameraTileX, startRelativeZ = segmentStartZ[segment] - cameraTileZ;
+			final float endRelativeX = segmentEndX[segment] - cameraTileX, endRelativeZ = segmentEndZ[segment] - cameraTileZ;
+			float startDepth = (startRelativeX * cameraSin) + (startRelativeZ * cameraCos);
+			float startSide = (startRelativeX * cameraCos) - (startRelativeZ * cameraSin);
+			float endDepth = (endRelativeX * cameraSin) + (endRelativeZ * cameraCos);
+			float endSide = (endRelativeX * cameraCos) - (endRelativeZ * cameraSin);
+			
+			// Clip the segment against a plane just in front of the camera, skipping it entirely if it is all behind the camera
+			final float nearDepth = 0.0001f;
+			if((startDepth < nearDepth) && (endDepth < nearDepth))
+				continue;
+			if(startDepth < nearDepth) {
+				final float clip = (nearDepth - startDepth) / (endDepth - startDepth);
+				startSide += (endSide - startSide) * clip;
+				startDepth = nearDepth;
+			} else if(endDepth < nearDepth) {
+				final float clip = (nearDepth - endDepth) / (startDepth - endDepth);
+				endSide += (startSide - endSide) * clip;
+				endDepth = nearDepth;
+			}
+			
+			// Find the columns the ends of the segment fall on and clip them to the window this sector is being seen through
+			final int startColumn = renderPane.getColumn((float) Math.atan2(startSide, startDepth));
+			final int endColumn = renderPane.getColumn((float) Math.atan2(endSide, endDepth));
+			final int firstColumn = Math.max(windowLeft, Math.min(startColumn, endColumn));
+			final int lastColumn = Math.min(windowRight, Math.max(startColumn, endColumn));
+			if(firstColumn >= lastColumn)
+				continue;
+			
+			if(segmentWalls[segment] != null) {
+				drawWallSegment(level, renderPane, camera, cameraTileX, cameraTileZ, segment, firstColumn, lastColumn);
+			} else if((segmentNeighbours[segment] != SEGMENT_VOID) && (depth < MAX_PORTAL_DEPTH)) {
+				// Look through the portal into the next sector, but only across the columns the portal covers. Portals beyond the furthest wall the
+				// ray caster would draw lead nowhere visible.
+				final float nearestDepth = Math.min(startDepth, endDepth);
+				if(nearestDepth < MAX_WALL_TILE_DISTANCE)
+					drawSector(level, renderPane, camera, cameraTileX, cameraTileZ, segmentNeighbours[segment], firstColumn, lastColumn, depth + 1);
+			}
+		}
+	}
+	
+	private void drawWallSegment(Level level, RenderPane3D renderPane, Camera camera, float cameraTileX, float cameraTileZ, int segment, int firstColumn, int lastColumn) {
+		// Segments are axis aligned, so each column's ray meets the segment where it crosses the segment's fixed X (or Z) position
+		final boolean isFixedX = (segmentNormalX[segment] != 0);
+		final float fixedPosition = isFixedX ? segmentStartX[segment] : segmentStartZ[segment];
+		final float cameraSin = renderPane.cameraAngleSin;
+		final float cameraCos = renderPane.cameraAngleCos;
+		
+		for(int screenX = firstColumn; screenX < lastColumn; screenX++) {
+			// Find each column's ray from the render pane's projection tables, matching the ray caster
+			final float rayX = (cameraSin * renderPane.columnAngleCoses[screenX]) + (cameraCos * renderPane.columnAngleSins[screenX]);
+			final float rayZ = (cameraCos * renderPane.columnAngleCoses[screenX]) - (cameraSin * renderPane.columnAngleSins[screenX]);
+			
+			final float rayDistance = isFixedX ? ((fixedPosition - cameraTileX) / rayX) : ((fixedPosition - cameraTileZ) / rayZ);
+			if((rayDistance <= 0) || (rayDistance > MAX_WALL_TILE_DISTANCE))
+				continue;
+			
+			// Texture the wall by how far along the tile the ray hit, matching the ray caster
+			final float hitPosition = isFixedX ? (cameraTileZ + rayZ * rayDistance) : (cameraTileX + rayX * rayDistance);
+			final float wallSpriteHorizontalPercentage = hitPosition - (float) Math.floor(hitPosition);
+			// Light the wall by the tile on the camera's side of it, matching the ray caster
+			final int hitTile = (int) Math.floor(hitPosition);
+			final int facingTile = (int) fixedPosition - ((isFixedX ? rayX : rayZ) > 0 ? 1 : 0);
+			final int light = isFixedX ? level.lightMap.getLight(facingTile, hitTile) : level.lightMap.getLight(hitTile, facingTile);
+			level.drawWallSlice(renderPane, camera, screenX, segmentWalls[segment], wallSpriteHorizontalPercentage, rayDistance * renderPane.columnAngleCoses[screenX], light);
+		}
+	}
+	
+	private void addEdgeSegments(SegmentBuilder segments, int startX, int startZ, int endX, int endZ, int normalX, int normalZ) {
+		// Step along the edge a tile at a time, looking at the tile on the outside of the edge
+		final boolean isAlongX = (startZ == endZ);
+		final int length = isAlongX ? (endX - startX) : (endZ - startZ);
+		int runStart = 0;
+		int runNeighbour = 0;
+		Wall runWall = null;
+		for(int step = 0; step <= length; step++) {
+			int neighbour = 0;
+			Wall wall = null;
+			if(step < length) {
+				final int outsideX = isAlongX ? (startX + step) : (startX + (normalX < 0 ? -1 : 0));
+				final int outsideZ = isAlongX ? (startZ + (normalZ < 0 ? -1 : 0)) : (startZ + step);
+				if((outsideX < 0) || (outsideZ < 0) || (outsideX >= tileMap.width) || (outsideZ >= tileMap.height)) {
+					neighbour = SEGMENT_VOID;
+				} else {
+					wall = Wall.getWall(tileMap.pixels[outsideX + outsideZ * tileMap.width]);
+					neighbour = (wall != null) ? SEGMENT_VOID : tileSectors[outsideX + outsideZ * tileMap.width];
+				}
+			}
+			
+			// Close off the current run when the other side changes (or the edge ends)
+			if((step > 0) && ((step == length) || (neighbour != runNeighbour) || (wall != runWall))) {
+				segments.add(
+					isAlongX ? (startX + runStart) : startX, isAlongX ? startZ : (startZ + runStart),
+					isAlongX ? (startX + step) : startX, isAlongX ? startZ : (startZ + step),
+					normalX, normalZ, runNeighbour, runWall);
+				runStart = step;
+			}
+			runNeighbour = neighbour;
+			runWall = wall;
+		}
+	}
+	
+	private boolean isAvailable(int tileX, int tileZ) {
+		if((tileX < 0) || (tileZ < 0) || (tileX >= tileMap.width) || (tileZ >= tileMap.height))
+			return false;
+		final int tileIndex = tileX + tileZ * tileMap.width;
+		return (tileSectors[tileIndex] < 0) && (Wall.getWall(tileMap.pixels[tileIndex]) == null);
+	}
+	
+	private boolean isRowAvailable(int tileX, int tileZ, int rowWidth) {
+		for(int x = tileX; x < tileX + rowWidth; x++) {
+			if(!isAvailable(x, tileZ)) return false;
+		}
+		return true;
+	}
+	
+	private static class SegmentBuilder {
+		int count = 0;
+		int[] startX = new int[256], startZ = new int[256], endX = new int[256], endZ = new int[256];
+		int[] normalX = new int[256], normalZ = new int[256], neighbours = new int[256];
+		Wall[] walls = new Wall[256];
+		
+		void add(int segmentStartX, int segmentStartZ, int segmentEndX, int segmentEndZ, int segmentNormalX, int segmentNormalZ, int neighbour, Wall wall) {
+			if(count == startX.length) {
+				final int capacity = count * 2;
+				startX = Arrays.copyOf(startX, capacity); startZ = Arrays.copyOf(startZ, capacity);
+				endX = Arrays.copyOf(endX, capacity); endZ = Arrays.copyOf(endZ, capacity);
+				normalX = Arrays.copyOf(normalX, capacity); normalZ = Arrays.copyOf(normalZ, capacity);
+				neighbours = Arrays.copyOf(neighbours, capacity);
+				walls = Arrays.copyOf(walls, capacity);
+			}
+			startX[count] = segmentStartX; startZ[count] = segmentStartZ;
+			endX[count] = segmentEndX; endZ[count] = segmentEndZ;
+			normalX[count] = segmentNormalX; normalZ[count] = segmentNormalZ;
+			neighbours[count] = neighbour;
+			walls[count] = wall;
+			count++;
+		}
+	}
+	
+}
@@ -0,0 +1,225 @@
+package utils;
+
+import java.util.Arrays;
+
+public class PotentiallyVisibleSet {
+
+	// The number of rays fired from each corner of the tile grid when building the set
+	private static final int RAYS_PER_CORNER = 256;
+
+	public final int width, height;
+	public final int radius;
+
+	// Each open tile stores a bitset over the square window of tiles around it (up to the radius in each direction), rather than a bitset
+	// over the whole level. Anything outside of that window is further away than the camera can render, so it is never visible. Each row
+	// of the window is stored in its own long, so that rows can be combined with simple bit shifts.
+	private final int windowSize;
+	private final int[] tileOffsets;
+	private final long[] visibilityBits;
+
+	public PotentiallyVisibleSet(Level level, float maxRenderDistance) {
+		final long buildStartTime = System.currentTimeMillis();
+
+		width = level.tileMap.width;
+		height = level.tileMap.height;
+		// Entities at the edges of the screen are further away than their depth, so leave some extra room beyond the render distance
+		radius = (int) Math.ceil(maxRenderDistance / level.tileSize) + 3;
+		windowSize = (2 * radius + 1);
+		if(windowSize > 64)
+			throw new IllegalArgumentException("Render distance of " + maxRenderDistance + " is too large for the potentially visible set");
+
+		// Work out which tiles are solid, and give every open tile its own section of the visibility bitset
+		final boolean[] solidTiles = new boolean[width * height];
+		tileOffsets = new int[width * height];
+		int openTileCount = 0;
+		for(int i = 0; i < solidTiles.length; i++) {
+			solidTiles[i] = (Wall.getWall(level.tileMap.pixels[i]) != null);
+			tileOffsets[i] = solidTiles[i] ? -1 : (openTileCount++ * windowSize);
+		}
+		visibilityBits = new long[openTileCount * windowSize];
+
+		// Every open tile can always see itself
+		for(int i = 0; i < tileOffsets.length; i++) {
+			if(!solidTiles[i]) markVisible(i % width, i / width, i % width, i / width);
+		}
+
+		// Every ray fired from a corner passes through the same tiles relative to that corner, so trace each ray once up-front. Alongside each step of
+		// the ray, store where that tile sits in the window of each of the four tiles around the corner (as the row in the upper bits and the
+		// column in the lower six bits).
+		final int[][] rayTileXOffsets = new int[RAYS_PER_CORNER][];
+		final int[][] rayTileZOffsets = new int[RAYS_PER_CORNER][];
+		final int[][][] rayWindowIndices = new int[RAYS_PER_CORNER][4][];
+		for(int rayIndex = 0; rayIndex < RAYS_PER_CORNER; rayIndex++) {
+			final double rayAngle = (2 * Math.PI * (rayIndex + 0.5)) / RAYS_PER_CORNER;
+			traceRay(rayIndex, (float) Math.sin(rayAngle), (float) Math.cos(rayAngle), rayTileXOffsets, rayTileZOffsets);
+
+			for(int quadrant = 0; quadrant < 4; quadrant++) {
+				final int quadrantTileX = (quadrant % 2) - 1;
+				final int quadrantTileZ = (quadrant / 2) - 1;
+				rayWindowIndices[rayIndex][quadrant] = new int[rayTileXOffsets[rayIndex].length];
+				for(int step = 0; step < rayTileXOffsets[rayIndex].length; step++) {
+					rayWindowIndices[rayIndex][quadrant][step] = getWindowIndex(rayTileXOffsets[rayIndex][step] - quadrantTileX, rayTileZOffsets[rayIndex][step] - quadrantTileZ);
+				}
+			}
+		}
+
+		// Fire rays out of each corner of the tile grid, rather than out of each tile, as each corner is shared by up to four tiles. Any tile that
+		// touches a corner can see everything the rays from that corner reach, until the ray hits a wall.
+		final int[] cornerTileOffsets = new int[4];
+		for(int cornerZ = 0; cornerZ <= height; cornerZ++) {
+			for(int cornerX = 0; cornerX <= width; cornerX++) {
+				boolean hasOpenTile = false;
+				for(int quadrant = 0; quadrant < 4; quadrant++) {
+					final int tileX = cornerX + (quadrant % 2) - 1;
+					final int tileZ = cornerZ + (quadrant / 2) - 1;
+					final boolean isInLevel = (tileX >= 0) && (tileZ >= 0) && (tileX < width) && (tileZ < height);
+					cornerTileOffsets[quadrant] = isInLevel ? tileOffsets[tileX + tileZ * width] : -1;
+					hasOpenTile |= (cornerTileOffsets[quadrant] >= 0);
+				}
+				if(!hasOpenTile)
+					continue;
+
+				castRays(solidTiles, cornerX, cornerZ, cornerTileOffsets, rayTileXOffsets, rayTileZOffsets, rayWindowIndices);
+			}
+		}
+
+		// Grow every visible region by a tile in each direction, so that sprites which overlap a visible tile from a neighbouring tile are kept
+		dilate();
+
+		System.out.println("Built potentially visible set for " + openTileCount + " tiles in " + (System.currentTimeMillis() - buildStartTime) + "ms");
+	}
+
+	public boolean hasVisibility(int fromTileX, int fromTileZ) {
+		// Visibility is only known from the open tiles inside the level
+		if((fromTileX < 0) || (fromTileZ < 0) || (fromTileX >= width) || (fromTileZ >= height))
+			return false;
+		return (tileOffsets[fromTileX + fromTileZ * width] >= 0);
+	}
+
+	public boolean isVisible(int fromTileX, int fromTileZ, int toTileX, int toTileZ) {
+		// If the viewer is outside the level or inside a wall then we can't say what they can see, so assume everything is visible
+		if((fromTileX < 0) || (fromTileZ < 0) || (fromTileX >= width) || (fromTileZ >= height))
+			return true;
+		final int tileOffset = tileOffsets[fromTileX + fromTileZ * width];
+		if(tileOffset < 0)
+			return true;
+
+		// Similarly, anything outside the level has no visibility information, so it is never culled
+		if((toTileX < 0) || (toTileZ < 0) || (toTileX >= width) || (toTileZ >= height))
+			return true;
+
+		// Anything beyond the window around the viewer is too far away to be rendered
+		final int relativeX = toTileX - fromTileX;
+		final int relativeZ = toTileZ - fromTileZ;
+		if((relativeX < -radius) || (relativeX > radius) || (relativeZ < -radius) || (relativeZ > radius))
+			return false;
+
+		final int windowIndex = getWindowIndex(relativeX, relativeZ);
+		return (visibilityBits[tileOffset + (windowIndex >> 6)] & (1L << windowIndex)) != 0;
+	}
+
+	private void castRays(boolean[] solidTiles, int cornerX, int cornerZ, int[] cornerTileOffsets, int[][] rayTileXOffsets, int[][] rayTileZOffsets, int[][][] rayWindowIndices) {
+		for(int rayIndex = 0; rayIndex < RAYS_PER_CORNER; rayIndex++) {
+			final int[] tileXOffsets = rayTileXOffsets[rayIndex];
+			final int[] tileZOffsets = rayTileZOffsets[rayIndex];
+
+			for(int step = 0; step < tileXOffsets.length; step++) {
+				final int tileX = cornerX + tileXOffsets[step];
+				final int tileZ = cornerZ + tileZOffsets[step];
+				if((tileX < 0) || (tileZ < 0) || (tileX >= width) || (tileZ >= height))
+					break;
+
+				for(int quadrant = 0; quadrant < 4; quadrant++) {
+					final int tileOffset = cornerTileOffsets[quadrant];
+					if(tileOffset < 0)
+						continue;
+					final int windowIndex = rayWindowIndices[rayIndex][quadrant][step];
+					visibilityBits[tileOffset + (windowIndex >> 6)] |= (1L << windowIndex);
+				}
+
+				// Walls are visible themselves, but block anything behind them
+				if(solidTiles[tileX + tileZ * width])
+					break;
+			}
+		}
+	}
+
+	private void traceRay(int rayIndex, float rayXDirection, float rayZDirection, int[][] rayTileXOffsets, int[][] rayTileZOffsets) {
+		// Work out which of the four tiles around the corner the ray starts in
+		int currentTileX = (rayXDirection >= 0) ? 0 : -1;
+		int currentTileZ = (rayZDirection >= 0) ? 0 : -1;
+
+		// Step through each tile the ray passes through (one tile boundary at a time) until the ray travels beyond the radius. The ray stops a tile
+		// short of the radius, so that it still falls inside the window of every tile around the corner.
+		final int tileXStep = (rayXDirection >= 0) ? 1 : -1;
+		final int tileZStep = (rayZDirection >= 0) ? 1 : -1;
+		final float rayXDeltaPerTile = Math.abs(1 / rayXDirection);
+		final float rayZDeltaPerTile = Math.abs(1 / rayZDirection);
+		float rayXDistanceToBoundary = rayXDeltaPerTile;
+		float rayZDistanceToBoundary = rayZDeltaPerTile;
+
+		final int[] tileXOffsets = new int[4 * radius];
+		final int[] tileZOffsets = new int[4 * radius];
+		int stepCount = 0;
+		while(true) {
+			tileXOffsets[stepCount] = currentTileX;
+			tileZOffsets[stepCount] = currentTileZ;
+			stepCount++;
+
+			if(rayXDistanceToBoundary < rayZDistanceToBoundary) {
+				if(rayXDistanceToBoundary > (radius - 1))
+					break;
+				currentTileX += tileXStep;
+				rayXDistanceToBoundary += rayXDeltaPerTile;
+			} else {
+				if(rayZDistanceToBoundary > (radius - 1))
+					break;
+				currentTileZ += tileZStep;
+				rayZDistanceToBoundary += rayZDeltaPerTile;
+			}
+		}
+
+		rayTileXOffsets[rayIndex] = Arrays.copyOf(tileXOffsets, stepCount);
+		rayTileZOffsets[rayIndex] = Arrays.copyOf(tileZOffsets, stepCount);
+	}
+
+	private void markVisible(int fromTileX, int fromTileZ, int toTileX, int toTileZ) {
+		// Ignore anything that falls outside the window around the tile
+		final int relativeX = toTileX - fromTileX;
+		final int relativeZ = toTileZ - fromTileZ;
+		if((relativeX < -radius) || (relativeX > radius) || (relativeZ < -radius) || (relativeZ > radius))
+			return;
+
+		final int windowIndex = getWindowIndex(relativeX, relativeZ);
+		final int tileOffset = tileOffsets[fromTileX + fromTileZ * width];
+		visibilityBits[tileOffset + (windowIndex >> 6)] |= (1L << windowIndex);
+	}
+
+	private void dilate() {
+		final long[] originalRows = new long[windowSize];
+		final long windowRowMask = (windowSize == 64) ? -1L : ((1L << windowSize) - 1);
+
+		for(int i = 0; i < tileOffsets.length; i++) {
+			final int tileOffset = tileOffsets[i];
+			if(tileOffset < 0)
+				continue;
+
+			// Spread each row into its neighbouring columns
+			for(int row = 0; row < windowSize; row++) {
+				final long currentRow = visibilityBits[tileOffset + row];
+				originalRows[row] = (currentRow | (currentRow << 1) | (currentRow >>> 1)) & windowRowMask;
+			}
+
+			// Then spread each row into its neighbouring rows
+			for(int row = 0; row < windowSize; row++) {
+				long dilatedRow = originalRows[row];
+				if(row > 0) dilatedRow |= originalRows[row - 1];
+				if(row < (windowSize - 1)) dilatedRow |= originalRows[row + 1];
+				visibilityBits[tileOffset + row] = dilatedRow;
+			}
+		}
+	}
+
+	private int getWindowIndex(int relativeX, int relativeZ) { return (relativeX + radius) + ((relativeZ + radius) << 6); }
+
+}
@@ -0,0 +1,202 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import graphics.Art;
+import graphics.Camera;
+import graphics.Entity;
+import mobs.Ghost;
+import mobs.Wolf;
+
+public class SaveGame {
+
+	public static final int SAVE_MAGIC = 0x44534156;
+	public static final short SAVE_VERSION = 1;
+
+	private static final byte ENTITY_WOLF = 0, ENTITY_GHOST = 1;
+	// The magic, version and name length, followed by the name, and then the elapsed time, camera and entity count
+	private static final int HEADER_START_SIZE = 4 + 2 + 2;
+	private static final int HEADER_END_SIZE = 8 + (4 * 4) + 4;
+	private static final int HEADER_SIZE = HEADER_START_SIZE + HEADER_END_SIZE;
+	// The type and sprite of each entity, followed by its position
+	private static final int ENTITY_SIZE = 1 + 1 + (3 * 4);
+
+	public String levelName = null;
+	public double elapsedTime = 0;
+	public float cameraX, cameraY, cameraZ, cameraAngle;
+
+	// Entities are kept as a separate array for each field, so that each field can be written to and read from the file in one bulk copy
+	public int entityCount = 0;
+	private byte[] entityTypes = new byte[64], entitySprites = new byte[64];
+	private float[] entityX = new float[64], entityY = new float[64], entityZ = new float[64];
+
+	// The file is built in a direct buffer which is kept between saves, so that the channel can write it out without another copy
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+	public void capture(Level level) {
+		levelName = level.name;
+		elapsedTime = level.elapsedTime;
+		final Camera camera = level.player.camera;
+		cameraX = camera.x;
+		cameraY = camera.y;
+		cameraZ = camera.z;
+		cameraAngle = camera.angle;
+
+		// Only the mobs which can be placed in the entity map can be rebuilt when loading, so anything else is left out
+		ensureEntityCapacity(level.entities.size());
+		entityCount = 0;
+		for(int i = 0; i < level.entities.size(); i++) {
+			final Entity entity = level.entities.get(i);
+			if(entity instanceof Wolf) entityTypes[entityCount] = ENTITY_WOLF;
+			else if(entity instanceof Ghost) entityTypes[entityCount] = ENTITY_GHOST;
+			else continue;
+
+			entitySprites[entityCount] = (byte) Art.getSpriteIndex(entity.sprite);
+			entityX[entityCount] = entity.x;
+			entityY[entityCount] = entity.y;
+			entityZ[entityCount] = entity.z;
+			entityCount++;
+		}
+	}
+
+	public void applyTo(Level level) {
+		if(!level.name.equals(levelName))
+			throw new IllegalArgumentException("Save is for level " + levelName + ", not " + level.name);
+
+		level.elapsedTime = elapsedTime;
+		final Camera camera = level.player.camera;
+		camera.x = cameraX;
+		camera.y = cameraY;
+		camera.z = cameraZ;
+		camera.angle = cameraAngle;
+
+		// Build the mobs straight from the save, rather than placing them from the entity map and moving them afterwards
+		level.entities.clear();
+		level.entities.ensureCapacity(entityCount);
+		for(int i = 0; i < entityCount; i++) {
+			final Entity entity;
+			if(entityTypes[i] == ENTITY_WOLF) entity = new Wolf(level, entityX[i], entityY[i], entityZ[i]);
+			else if(entityTypes[i] == ENTITY_GHOST) entity = new Ghost(level, entityX[i], entityY[i], entityZ[i]);
+			else continue;
+			if((entitySprites[i] >= 0) && (entitySprites[i] < Art.ALL_SPRITES.length)) entity.sprite = Art.ALL_SPRITES[entitySprites[i]];
+			level.entities.add(entity);
+		}
+		level.lightMap.update(level);
+	}
+
+	public void write(String path) throws IOException {
+		final byte[] levelNameBytes = levelName.getBytes(StandardCharsets.UTF_8);
+		if(levelNameBytes.length > 0xffff)
+			throw new IOException("Level name is too long to save");
+		ensureBufferCapacity(HEADER_SIZE + levelNameBytes.length + (entityCount * ENTITY_SIZE));
+
+		buffer.clear();
+		buffer.putInt(SAVE_MAGIC);
+		buffer.putShort(SAVE_VERSION);
+		buffer.putShort((short) levelNameBytes.length);
+		buffer.put(levelNameBytes);
+		buffer.putDouble(elapsedTime);
+		buffer.putFloat(cameraX).putFloat(cameraY).putFloat(cameraZ).putFloat(cameraAngle);
+		buffer.putInt(entityCount);
+		buffer.put(entityTypes, 0, entityCount);
+		buffer.put(entitySprites, 0, entityCount);
+		putFloats(entityX);
+		putFloats(entityY);
+		putFloats(entityZ);
+		buffer.flip();
+
+		// Write to a temporary file first and then move it over the old save, so that a failed save never leaves a half-written file behind
+		final Path savePath = Paths.get(path);
+		final Path temporaryPath = Paths.get(path + ".tmp");
+		try(FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while(buffer.hasRemaining()) channel.write(buffer);
+		}
+		Files.move(temporaryPath, savePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void read(String path) throws IOException {
+		try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			final long fileSize = channel.size();
+			if(fileSize > Integer.MAX_VALUE)
+				throw new IOException("Save file is too large");
+			ensureBufferCapacity((int) fileSize);
+
+			buffer.clear();
+			buffer.limit((int) fileSize);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) < 0) throw new IOException("Save file ended early");
+			}
+			buffer.flip();
+		}
+
+		// Check every length against what is actually left in the file before using it, so that a cut off or corrupted save is reported as such
+		// rather than failing part way through reading it
+		if((buffer.remaining() < HEADER_SIZE) || (buffer.getInt() != SAVE_MAGIC))
+			throw new IOException("Not a save file");
+		final short version = buffer.getShort();
+		if(version != SAVE_VERSION)
+			throw new IOException("Unsupported save version " + version);
+
+		final int levelNameLength = buffer.getShort() & 0xffff;
+		if(buffer.remaining() < (levelNameLength + HEADER_END_SIZE))
+			throw new IOException("Save file ended early");
+		final byte[] levelNameBytes = new byte[levelNameLength];
+		buffer.get(levelNameBytes);
+		levelName = new String(levelNameBytes, StandardCharsets.UTF_8);
+		elapsedTime = buffer.getDouble();
+		cameraX = buffer.getFloat();
+		cameraY = buffer.getFloat();
+		cameraZ = buffer.getFloat();
+		cameraAngle = buffer.getFloat();
+
+		final int count = buffer.getInt();
+		if((count < 0) || (buffer.remaining() != ((long) count * ENTITY_SIZE)))
+			throw new IOException("Save file has the wrong size for " + count + " entities");
+		ensureEntityCapacity(count);
+		entityCount = count;
+		buffer.get(entityTypes, 0, entityCount);
+		buffer.get(entitySprites, 0, entityCount);
+		getFloats(entityX);
+		getFloats(entityY);
+		getFloats(entityZ);
+	}
+
+	private void putFloats(float[] values) {
+		// Copy the whole array through a float view of the buffer, rather than writing one float at a time
+		buffer.asFloatBuffer().put(values, 0, entityCount);
+		buffer.position(buffer.position() + (entityCount * 4));
+	}
+
+	private void getFloats(float[] values) {
+		buffer.asFloatBuffer().get(values, 0, entityCount);
+		buffer.position(buffer.position() + (entityCount * 4));
+	}
+
+	private void ensureBufferCapacity(int size) {
+		if(buffer.capacity() >= size)
+			return;
+		buffer = ByteBuffer.allocateDirect(Math.max(size, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void ensureEntityCapacity(int count) {
+		if(count <= entityTypes.length)
+			return;
+		final int capacity = Math.max(count, entityTypes.length * 2);
+		entityTypes = Arrays.copyOf(entityTypes, capacity);
+		entitySprites = Arrays.copyOf(entitySprites, capacity);
+		entityX = Arrays.copyOf(entityX, capacity);
+		entityY = Arrays.copyOf(entityY, capacity);
+		entityZ = Arrays.copyOf(entityZ, capacity);
+	}
+
+}
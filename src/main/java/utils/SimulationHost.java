@@ -0,0 +1,78 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class SimulationHost {
+
+	public final int tickRate;
+	public final ArrayList<SimulationSession> sessions = new ArrayList<SimulationSession>();
+	
+	// Every session shares one pool of tick threads (one per core by default), rather than having a thread of its own. Between ticks a session is
+	// just an entry in the scheduler's queue, so idle sessions cost no CPU time and no thread.
+	private final ScheduledThreadPoolExecutor tickScheduler;
+	private final ArrayList<ScheduledFuture<?>> scheduledTicks = new ArrayList<ScheduledFuture<?>>();
+	
+	public SimulationHost(int tickRate, int threadCount) {
+		this.tickRate = tickRate;
+		tickScheduler = new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+			final Thread thread = new Thread(runnable, "Simulation Tick Thread");
+			thread.setDaemon(true);
+			return thread;
+		});
+		tickScheduler.setRemoveOnCancelPolicy(true);
+	}
+	
+	public synchronized SimulationSession addSession(Level level) {
+		final SimulationSession session = new SimulationSession(sessions.size(), level);
+		sessions.add(session);
+		
+		// Each session ticks at a fixed rate, with the start of each session spread across the first tick so they don't all wake at once. A
+		// scheduled task never runs alongside itself, so each level is only ever updated by one thread at a time.
+		final long tickPeriodNanoseconds = 1000000000L / tickRate;
+		final float delta = 1.0f / tickRate;
+		final long initialDelay = (long) (((session.id * 0.6180339887) % 1.0) * tickPeriodNanoseconds);
+		scheduledTicks.add(tickScheduler.scheduleAtFixedRate(() -> session.tick(delta), initialDelay, tickPeriodNanoseconds, TimeUnit.NANOSECONDS));
+		return session;
+	}
+	
+	public synchronized void stop() {
+		for(ScheduledFuture<?> scheduledTick : scheduledTicks) {
+			scheduledTick.cancel(false);
+		}
+		scheduledTicks.clear();
+		tickScheduler.shutdown();
+		
+		try {
+			tickScheduler.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			System.err.println("Failed to wait for simulation sessions to stop - " + e.getMessage());
+		}
+	}
+	
+	public synchronized String getReport(double elapsedSeconds) {
+		// Summarise the tick times of each session, along with the totals across every session
+		final StringBuilder report = new StringBuilder();
+		final FrameTimeHistogram sessionHistogram = new FrameTimeHistogram();
+		long totalTicks = 0, slowestTickNanoseconds = 0;
+		for(SimulationSession session : sessions) {
+			session.copyTickHistogram(sessionHistogram);
+			totalTicks += sessionHistogram.getTotalCount();
+			slowestTickNanoseconds = Math.max(slowestTickNanoseconds, sessionHistogram.getMaxNanoseconds());
+			
+			report.append("session ").append(session.id).append(": ").append(sessionHistogram.getTotalCount()).append(" ticks, p50 ");
+			report.append(sessionHistogram.getPercentileNanoseconds(50) / 1000).append("us / p99 ");
+			report.append(sessionHistogram.getPercentileNanoseconds(99) / 1000).append("us / max ");
+			report.append(sessionHistogram.getMaxNanoseconds() / 1000).append("us\n");
+		}
+		
+		final long expectedTicks = (long) (sessions.size() * tickRate * elapsedSeconds);
+		report.append(sessions.size()).append(" sessions ran ").append(totalTicks).append(" ticks (").append(expectedTicks).append(" expected) in ");
+		report.append((long) (elapsedSeconds * 1000)).append("ms, ").append((long) (totalTicks / elapsedSeconds)).append(" ticks per second, slowest tick ");
+		report.append(slowestTickNanoseconds / 1000).append("us\n");
+		return report.toString();
+	}
+	
+}
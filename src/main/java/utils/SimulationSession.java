@@ -0,0 +1,46 @@
+package utils;
+
+import ui.InputHandler;
+
+public class SimulationSession {
+
+	public final int id;
+	public final Level level;
+	// Bots (or remote players) drive the session by applying key events here between ticks
+	public final InputHandler input = new InputHandler();
+	
+	// The tick thread records into the live histogram, and reports copy it under the same lock so they never see a half-recorded tick
+	private final FrameTimeHistogram tickHistogram = new FrameTimeHistogram();
+	
+	public SimulationSession(int id, Level level) {
+		this.id = id;
+		this.level = level;
+	}
+	
+	public void tick(float delta) {
+		final long tickStartTime = System.nanoTime();
+		synchronized(input) {
+			level.update(input, delta);
+			input.beginTick();
+		}
+		final long tickNanoseconds = System.nanoTime() - tickStartTime;
+		
+		synchronized(tickHistogram) {
+			tickHistogram.record(tickNanoseconds);
+		}
+	}
+	
+	public void applyKeyEvent(int keyCode, boolean isPressed) {
+		// Input can arrive from any thread, so it is only applied while the session isn't ticking
+		synchronized(input) {
+			input.applyKeyEvent(keyCode, isPressed);
+		}
+	}
+	
+	public void copyTickHistogram(FrameTimeHistogram destination) {
+		synchronized(tickHistogram) {
+			tickHistogram.copyTo(destination);
+		}
+	}
+	
+}